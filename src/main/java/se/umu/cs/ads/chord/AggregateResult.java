@@ -0,0 +1,77 @@
+package se.umu.cs.ads.chord;
+
+/**
+ * Statistics aggregated over a set of Chord nodes.
+ */
+class AggregateResult {
+	final long nodeCount;
+	final long keyCount;
+	final long minKeys; // Fewest keys at one node
+	final long maxKeys; // Most keys at one node
+	final int minProtocolVersion;
+	final int maxProtocolVersion;
+	final boolean complete; // False if some nodes did not answer in time
+
+	public AggregateResult(long nodeCount, long keyCount, long minKeys, long maxKeys, int minProtocolVersion,
+		int maxProtocolVersion, boolean complete) {
+		this.nodeCount = nodeCount;
+		this.keyCount = keyCount;
+		this.minKeys = minKeys;
+		this.maxKeys = maxKeys;
+		this.minProtocolVersion = minProtocolVersion;
+		this.maxProtocolVersion = maxProtocolVersion;
+		this.complete = complete;
+	}
+
+	/**
+	 * Create the statistics of a single node.
+	 *
+	 * @param keyCount        the number of keys stored at the node.
+	 * @param protocolVersion the wire protocol version of the node.
+	 *
+	 * @return the statistics.
+	 */
+	static AggregateResult forNode(long keyCount, int protocolVersion) {
+		return new AggregateResult(1, keyCount, keyCount, keyCount, protocolVersion, protocolVersion, true);
+	}
+
+	/**
+	 * Create the statistics of no nodes, which leave other statistics unchanged when combined with them.
+	 *
+	 * @return the statistics.
+	 */
+	static AggregateResult empty() {
+		return new AggregateResult(0, 0, Long.MAX_VALUE, Long.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, true);
+	}
+
+	/**
+	 * Combine these statistics with the statistics of a disjoint set of nodes.
+	 *
+	 * @param other the other statistics.
+	 *
+	 * @return the statistics of both sets of nodes.
+	 */
+	AggregateResult combine(AggregateResult other) {
+		return new AggregateResult(nodeCount + other.nodeCount, keyCount + other.keyCount,
+			Math.min(minKeys, other.minKeys), Math.max(maxKeys, other.maxKeys),
+			Math.min(minProtocolVersion, other.minProtocolVersion),
+			Math.max(maxProtocolVersion, other.maxProtocolVersion), complete && other.complete);
+	}
+
+	/**
+	 * Mark these statistics as missing some nodes.
+	 *
+	 * @return the incomplete statistics.
+	 */
+	AggregateResult incomplete() {
+		return new AggregateResult(nodeCount, keyCount, minKeys, maxKeys, minProtocolVersion, maxProtocolVersion,
+			false);
+	}
+
+	@Override
+	public String toString() {
+		return "AggregateResult{nodeCount=" + nodeCount + ", keyCount=" + keyCount + ", minKeys=" + minKeys +
+			", maxKeys=" + maxKeys + ", protocolVersions=[" + minProtocolVersion + ", " + maxProtocolVersion +
+			"], complete=" + complete + "}";
+	}
+}
@@ -1,11 +1,18 @@
 package se.umu.cs.ads.chord;
 
 import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
 
 import io.grpc.ManagedChannel;
@@ -15,6 +22,9 @@ import io.grpc.StatusRuntimeException;
 
 public class ChordGrpcClient {
 	private static final Logger logger = LoggerFactory.getLogger(ChordGrpcClient.class);
+	// The owner of a value holds the value's lock while it calls cacheValue and invalidateValue, so a node that has
+	// stopped answering must not hold up the value's puts for longer than this
+	private static final int cacheCallTimeout = 500; // Milliseconds
 
 	/**
 	 * Perform a health check of a Chord node.
@@ -23,7 +33,7 @@ public class ChordGrpcClient {
 	 * @param port    the port to use for connecting to the node.
 	 * @param timeout the maximum time to wait for a response in milliseconds.
 	 *
-	 * @return the status returned by the node.
+	 * @return the status returned by the node, or false if the node uses another wire protocol version.
 	 */
 	public static boolean healthCheck(String address, int port, int timeout) {
 		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
@@ -34,6 +44,12 @@ public class ChordGrpcClient {
 			HealthCheckResponse response = stub.withDeadlineAfter(timeout, TimeUnit.MILLISECONDS).healthCheck(
 				Empty.getDefaultInstance());
 			status = response.getStatus();
+			if (response.getProtocolVersion() != GrpcTypeHelper.protocolVersion) {
+				// The node cannot decode this node's messages, or the other way around
+				logger.warn("Node at " + address + " uses wire protocol version " + response.getProtocolVersion() +
+					" instead of " + GrpcTypeHelper.protocolVersion);
+				status = false;
+			}
 		} catch (StatusRuntimeException e) { // On timeout
 			if (e.getStatus().getCode().equals(Status.DEADLINE_EXCEEDED.getCode())) {
 				logger.info("Health check deadline exceeded: " + e.getStatus().getDescription());
@@ -122,6 +138,22 @@ public class ChordGrpcClient {
 		channel.shutdown();
 	}
 
+	/**
+	 * Call the handOver method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param port    the port to use for connecting to the node.
+	 * @param node    the joining node to hand over values to.
+	 */
+	public static void handOver(String address, int port, NodeInfo node) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		Empty response = stub.handOver(GrpcTypeHelper.nodeFromNodeInfo(node));
+
+		channel.shutdown();
+	}
+
 	/**
 	 * Call the updateFingerTable method on another node.
 	 *
@@ -177,4 +209,283 @@ public class ChordGrpcClient {
 
 		channel.shutdown();
 	}
+
+	/**
+	 * Call the stabilize method on another node.
+	 *
+	 * @param address       the address to the node.
+	 * @param port          the port to use for connecting to the node.
+	 * @param node          the node to pass as the potential predecessor.
+	 * @param fingerVersion the node's finger table version at the last call, or 0 for the full finger table.
+	 *
+	 * @return the predecessor and changed fingers of the node after it has been notified.
+	 */
+	public static StabilizeResult stabilize(String address, int port, NodeInfo node, long fingerVersion) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		StabilizeRequest request = StabilizeRequest.newBuilder()
+			.setNode(GrpcTypeHelper.nodeFromNodeInfo(node))
+			.setFingerVersion(fingerVersion)
+			.build();
+		StabilizeResponse response = stub.stabilize(request);
+
+		channel.shutdown();
+
+		NodeInfo predecessor = null;
+		if (response.hasPredecessor()) {
+			predecessor = GrpcTypeHelper.nodeInfoFromNode(response.getPredecessor());
+		}
+		NodeInfo[] fingers = new NodeInfo[response.getFingersCount()];
+		for (int i = 0; i < fingers.length; i++) {
+			fingers[i] = GrpcTypeHelper.nodeInfoFromNode(response.getFingers(i));
+		}
+		return new StabilizeResult(predecessor, fingers, response.getFingerVersion(), response.getLoad());
+	}
+
+	/**
+	 * Call the getFingerTable method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param port    the port to use for connecting to the node.
+	 *
+	 * @return the finger table returned from the node.
+	 */
+	public static NodeInfo[] getFingerTable(String address, int port) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		FingerTable response = stub.getFingerTable(Empty.getDefaultInstance());
+
+		channel.shutdown();
+
+		return GrpcTypeHelper.nodeInfosFromFingerTable(response);
+	}
+
+	/**
+	 * Call the put method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param port    the port to use for connecting to the node.
+	 * @param key     the key of the value.
+	 * @param value   the value.
+	 */
+	public static void put(String address, int port, String key, byte[] value) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		Empty response = stub.put(PutRequest.newBuilder().setKey(key).setValue(ByteString.copyFrom(value)).build());
+
+		channel.shutdown();
+	}
+
+	/**
+	 * Call the get method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param port    the port to use for connecting to the node.
+	 * @param key     the key of the value.
+	 *
+	 * @return the value, or null if there is no value for the key.
+	 */
+	public static byte[] get(String address, int port, String key) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		GetResponse response = stub.get(GetRequest.newBuilder().setKey(key).build());
+
+		channel.shutdown();
+		return response.getFound() ? response.getValue().toByteArray() : null;
+	}
+
+	/**
+	 * Call the storeValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param port       the port to use for connecting to the node.
+	 * @param identifier the identifier of the value.
+	 * @param value      the value.
+	 */
+	public static void storeValue(String address, int port, BigInteger identifier, byte[] value) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		Empty response = stub.storeValue(StoreValueRequest.newBuilder().setIdentifier(
+			GrpcTypeHelper.identifierFromBigInteger(identifier)).setValue(ByteString.copyFrom(value)).build());
+
+		channel.shutdown();
+	}
+
+	/**
+	 * Call the lookupValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param port       the port to use for connecting to the node.
+	 * @param identifier the identifier of the value.
+	 * @param owner      whether the node is known to be the owner of the identifier.
+	 * @param path       the nodes that the lookup has passed through.
+	 *
+	 * @return the value or the next node to ask.
+	 */
+	public static LookupValueResult lookupValue(String address, int port, BigInteger identifier, boolean owner,
+		List<NodeInfo> path) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		LookupValueRequest.Builder request = LookupValueRequest.newBuilder().setIdentifier(
+			GrpcTypeHelper.identifierFromBigInteger(identifier)).setOwner(owner);
+		for (NodeInfo node : path) {
+			request.addPath(GrpcTypeHelper.nodeFromNodeInfo(node));
+		}
+		LookupValueResponse response = stub.lookupValue(request.build());
+
+		channel.shutdown();
+
+		byte[] value = response.getFound() ? response.getValue().toByteArray() : null;
+		NodeInfo nextNode = response.hasNextNode() ? GrpcTypeHelper.nodeInfoFromNode(response.getNextNode()) : null;
+		return new LookupValueResult(value, nextNode, response.getNextIsOwner());
+	}
+
+	/**
+	 * Call the cacheValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param port       the port to use for connecting to the node.
+	 * @param identifier the identifier of the value.
+	 * @param value      the value.
+	 */
+	public static void cacheValue(String address, int port, BigInteger identifier, byte[] value) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		try {
+			Empty response = stub.withDeadlineAfter(cacheCallTimeout, TimeUnit.MILLISECONDS).cacheValue(
+				StoreValueRequest.newBuilder().setIdentifier(GrpcTypeHelper.identifierFromBigInteger(identifier))
+					.setValue(ByteString.copyFrom(value)).build());
+		} finally {
+			channel.shutdown();
+		}
+	}
+
+	/**
+	 * Call the invalidateValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param port       the port to use for connecting to the node.
+	 * @param identifier the identifier of the value.
+	 */
+	public static void invalidateValue(String address, int port, BigInteger identifier) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		try {
+			Empty response = stub.withDeadlineAfter(cacheCallTimeout, TimeUnit.MILLISECONDS).invalidateValue(
+				GrpcTypeHelper.identifierFromBigInteger(identifier));
+		} finally {
+			channel.shutdown();
+		}
+	}
+
+	/**
+	 * Call the aggregate method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param port    the port to use for connecting to the node.
+	 * @param start   the start of the interval (inclusive), or null for the whole ring from the node.
+	 * @param limit   the end of the interval (exclusive), or null for the whole ring from the node.
+	 * @param timeout the maximum time to wait for a response in milliseconds.
+	 *
+	 * @return the statistics returned by the node.
+	 */
+	public static AggregateResult aggregate(String address, int port, BigInteger start, BigInteger limit,
+		long timeout) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		AggregateRequest.Builder request = AggregateRequest.newBuilder().setTimeout(timeout);
+		if (start != null) {
+			request.setStart(GrpcTypeHelper.identifierFromBigInteger(start));
+			request.setLimit(GrpcTypeHelper.identifierFromBigInteger(limit));
+		}
+
+		try {
+			AggregateResponse response = stub.withDeadlineAfter(timeout, TimeUnit.MILLISECONDS).aggregate(
+				request.build());
+			return GrpcTypeHelper.aggregateResultFromAggregateResponse(response);
+		} finally {
+			channel.shutdown();
+		}
+	}
+
+	/**
+	 * Scan the values in an identifier range across the network, through a node. The values are passed to the
+	 * consumer as they arrive.
+	 *
+	 * @param address  the address to the node.
+	 * @param port     the port to use for connecting to the node.
+	 * @param start    the start of the range (exclusive).
+	 * @param end      the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit    the maximum number of values, 0 for no limit.
+	 * @param consumer the consumer of the identifiers and values, in ring order from start.
+	 *
+	 * @return the identifier to resume the scan from, or null if the whole range was scanned.
+	 */
+	public static BigInteger scan(String address, int port, BigInteger start, BigInteger end, int limit,
+		BiConsumer<BigInteger, byte[]> consumer) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		try {
+			Iterator<ScanResponse> responses = stub.scan(scanRequest(start, end, limit));
+			BigInteger cursor = null;
+			while (responses.hasNext()) {
+				ScanResponse response = responses.next();
+				if (response.hasCursor()) {
+					cursor = GrpcTypeHelper.bigIntegerFromIdentifier(response.getCursor());
+				} else {
+					ScanEntry entry = response.getEntry();
+					consumer.accept(GrpcTypeHelper.bigIntegerFromIdentifier(entry.getIdentifier()),
+						entry.getValue().toByteArray());
+				}
+			}
+			return cursor;
+		} finally {
+			channel.shutdown();
+		}
+	}
+
+	/**
+	 * Call the scanValues method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param port    the port to use for connecting to the node.
+	 * @param start   the start of the range (exclusive).
+	 * @param end     the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit   the maximum number of values, 0 for no limit.
+	 *
+	 * @return the identifiers and values stored by the node, in ring order from start.
+	 */
+	public static List<Map.Entry<BigInteger, byte[]>> scanValues(String address, int port, BigInteger start,
+		BigInteger end, int limit) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(address, port).usePlaintext().build();
+		ChordServiceGrpc.ChordServiceBlockingStub stub = ChordServiceGrpc.newBlockingStub(channel);
+
+		try {
+			List<Map.Entry<BigInteger, byte[]>> values = new ArrayList<>();
+			Iterator<ScanEntry> entries = stub.scanValues(scanRequest(start, end, limit));
+			while (entries.hasNext()) {
+				ScanEntry entry = entries.next();
+				values.add(new AbstractMap.SimpleImmutableEntry<>(
+					GrpcTypeHelper.bigIntegerFromIdentifier(entry.getIdentifier()), entry.getValue().toByteArray()));
+			}
+			return values;
+		} finally {
+			channel.shutdown();
+		}
+	}
+
+	private static ScanRequest scanRequest(BigInteger start, BigInteger end, int limit) {
+		return ScanRequest.newBuilder().setStart(GrpcTypeHelper.identifierFromBigInteger(start))
+			.setEnd(GrpcTypeHelper.identifierFromBigInteger(end)).setLimit(limit).build();
+	}
 }
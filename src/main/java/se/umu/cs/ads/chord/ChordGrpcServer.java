@@ -2,21 +2,59 @@ package se.umu.cs.ads.chord;
 
 import java.io.IOException;
 import java.math.BigInteger;
-
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
 
 import io.grpc.Context;
+import io.grpc.Metadata;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallExecutorSupplier;
 import io.grpc.Status;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
 
 public class ChordGrpcServer extends ChordServiceGrpc.ChordServiceImplBase {
+	// Methods whose handlers only use local state and never wait for other nodes
+	private static final Set<String> nonBlockingMethods = new HashSet<>(Arrays.asList(
+		ChordServiceGrpc.getHealthCheckMethod().getFullMethodName(),
+		ChordServiceGrpc.getGetSuccessorMethod().getFullMethodName(),
+		ChordServiceGrpc.getGetPredecessorMethod().getFullMethodName(),
+		ChordServiceGrpc.getSetPredecessorMethod().getFullMethodName(),
+		ChordServiceGrpc.getClosestPrecedingFingerMethod().getFullMethodName(),
+		ChordServiceGrpc.getNotifyMethod().getFullMethodName(),
+		ChordServiceGrpc.getStabilizeMethod().getFullMethodName(),
+		ChordServiceGrpc.getGetFingerTableMethod().getFullMethodName(),
+		ChordServiceGrpc.getLookupValueMethod().getFullMethodName(),
+		ChordServiceGrpc.getCacheValueMethod().getFullMethodName(),
+		ChordServiceGrpc.getInvalidateValueMethod().getFullMethodName(),
+		ChordServiceGrpc.getScanValuesMethod().getFullMethodName()));
+	// Methods whose handlers are waited for by the handlers of other nodes, and wait for further nodes themselves
+	private static final Set<String> relayedMethods = new HashSet<>(Arrays.asList(
+		ChordServiceGrpc.getStoreValueMethod().getFullMethodName(),
+		ChordServiceGrpc.getUpdateFingerTableMethod().getFullMethodName(),
+		ChordServiceGrpc.getHandOverMethod().getFullMethodName(),
+		ChordServiceGrpc.getAggregateMethod().getFullMethodName()));
+
 	private final ChordGrpcServerHandler handler;
 	private final Server server;
+	private final ExecutorService executor; // null when gRPC's default executor is used
+	private final ExecutorService relayExecutor; // For the relayed methods when the executor is bounded, or null
 
 	/**
-	 * Creates a new server for incoming gRPC calls.
+	 * Creates a new server for incoming gRPC calls, using gRPC's default executor.
 	 *
 	 * @param handler a handler for the requests.
 	 * @param port    the port to bind the server to.
@@ -24,9 +62,69 @@ public class ChordGrpcServer extends ChordServiceGrpc.ChordServiceImplBase {
 	 * @throws IOException if there is an error with address resolution or server initialization.
 	 */
 	public ChordGrpcServer(ChordGrpcServerHandler handler, int port) throws IOException {
+		this(handler, null, port, ServerExecutionModel.CACHED, 0, false);
+	}
+
+	/**
+	 * Creates a new server for incoming gRPC calls.
+	 *
+	 * @param handler                a handler for the requests.
+	 * @param address                the address to bind the server to, or null for all addresses. Binding to a
+	 *                               loopback address of its own lets several nodes run on one host.
+	 * @param port                   the port to bind the server to.
+	 * @param executionModel         the thread model for running the handlers.
+	 * @param threads                the number of threads for {@link ServerExecutionModel#BOUNDED}.
+	 * @param inlineNonBlockingCalls whether handlers that never wait for other nodes should run directly on the
+	 *                               transport thread instead of on an executor. With a bounded executor, they
+	 *                               otherwise run on the unbounded pool that is used for the handlers which other
+	 *                               nodes wait for.
+	 *
+	 * @throws IOException if there is an error with address resolution or server initialization.
+	 */
+	public ChordGrpcServer(ChordGrpcServerHandler handler, String address, int port,
+		ServerExecutionModel executionModel, int threads, boolean inlineNonBlockingCalls) throws IOException {
 		super();
 		this.handler = handler;
-		server = ServerBuilder.forPort(port).addService(this).build();
+		executor = executionModel.createExecutor(threads);
+		ServerBuilder<?> builder = address == null ? ServerBuilder.forPort(port) :
+			NettyServerBuilder.forAddress(new InetSocketAddress(address, port));
+		builder.addService(this);
+		if (executionModel == ServerExecutionModel.BOUNDED) {
+			// gRPC looks up the method on the server's executor before asking for the call's executor, so a full
+			// bounded pool would also hold up the calls that are meant to run inline. The lookup therefore runs on
+			// the transport thread and every method is sent to its executor from there.
+			// A bounded pool full of handlers that wait for a node whose bounded pool is full of handlers that wait
+			// for this node would deadlock the ring, so the handlers that are waited for never run on it. Their
+			// number is still bounded by the handlers that wait for them.
+			relayExecutor = Executors.newCachedThreadPool();
+			builder.directExecutor();
+			builder.callExecutor(new ServerCallExecutorSupplier() {
+				@Override
+				public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata) {
+					String method = call.getMethodDescriptor().getFullMethodName();
+					if (nonBlockingMethods.contains(method)) {
+						return inlineNonBlockingCalls ? null : relayExecutor; // null stays on the transport thread
+					}
+					return relayedMethods.contains(method) ? relayExecutor : executor;
+				}
+			});
+		} else {
+			relayExecutor = null;
+			if (executor != null) {
+				builder.executor(executor);
+			}
+			if (inlineNonBlockingCalls) {
+				builder.callExecutor(new ServerCallExecutorSupplier() {
+					@Override
+					public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata) {
+						// Returning null uses the server's executor
+						return nonBlockingMethods.contains(call.getMethodDescriptor().getFullMethodName()) ?
+							Runnable::run : null;
+					}
+				});
+			}
+		}
+		server = builder.build();
 		server.start();
 	}
 
@@ -36,6 +134,12 @@ public class ChordGrpcServer extends ChordServiceGrpc.ChordServiceImplBase {
 	 */
 	public void shutdown() {
 		server.shutdown();
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (relayExecutor != null) {
+			relayExecutor.shutdown();
+		}
 	}
 
 	/**
@@ -62,7 +166,8 @@ public class ChordGrpcServer extends ChordServiceGrpc.ChordServiceImplBase {
 
 		boolean status = handler.healthCheck();
 
-		HealthCheckResponse response = HealthCheckResponse.newBuilder().setStatus(status).build();
+		HealthCheckResponse response = HealthCheckResponse.newBuilder().setStatus(status)
+			.setProtocolVersion(GrpcTypeHelper.protocolVersion).build();
 
 		responseObserver.onNext(response);
 		responseObserver.onCompleted();
@@ -111,6 +216,10 @@ public class ChordGrpcServer extends ChordServiceGrpc.ChordServiceImplBase {
 	@Override
 	public void getPredecessor(Empty request, StreamObserver<Node> responseObserver) {
 		NodeInfo predecessor = handler.getPredecessor();
+		if (predecessor == null) {
+			responseObserver.onError(Status.NOT_FOUND.withDescription("No predecessor").asRuntimeException());
+			return;
+		}
 
 		Node response = GrpcTypeHelper.nodeFromNodeInfo(predecessor);
 
@@ -132,6 +241,20 @@ public class ChordGrpcServer extends ChordServiceGrpc.ChordServiceImplBase {
 		responseObserver.onCompleted();
 	}
 
+	/**
+	 * Handler for incoming handOver requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void handOver(Node request, StreamObserver<Empty> responseObserver) {
+		handler.handOver(GrpcTypeHelper.nodeInfoFromNode(request));
+
+		responseObserver.onNext(Empty.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
 	@Override
 	public void updateFingerTable(UpdateFingerTableRequest request, StreamObserver<Empty> responseObserver) {
 		handler.updateFingerTable(GrpcTypeHelper.nodeInfoFromNode(request.getNode()), request.getIndex());
@@ -173,4 +296,208 @@ public class ChordGrpcServer extends ChordServiceGrpc.ChordServiceImplBase {
 		responseObserver.onNext(Empty.getDefaultInstance());
 		responseObserver.onCompleted();
 	}
+
+	/**
+	 * Handler for incoming stabilize requests. The request is handled as a notify request, and the response contains
+	 * the predecessor, successor, changed fingers, finger table version and load of this node after the notification.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void stabilize(StabilizeRequest request, StreamObserver<StabilizeResponse> responseObserver) {
+		StabilizeResult result = handler.stabilize(GrpcTypeHelper.nodeInfoFromNode(request.getNode()),
+			request.getFingerVersion());
+
+		StabilizeResponse.Builder response = StabilizeResponse.newBuilder();
+		if (result.predecessor != null) {
+			response.setPredecessor(GrpcTypeHelper.nodeFromNodeInfo(result.predecessor));
+		}
+		for (NodeInfo finger : result.fingers) {
+			response.addFingers(GrpcTypeHelper.nodeFromNodeInfo(finger));
+		}
+		response.setFingerVersion(result.fingerVersion);
+		response.setLoad(result.load);
+
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming getFingerTable requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void getFingerTable(Empty request, StreamObserver<FingerTable> responseObserver) {
+		responseObserver.onNext(GrpcTypeHelper.fingerTableFromNodeInfos(handler.getFingerTable()));
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming put requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void put(PutRequest request, StreamObserver<Empty> responseObserver) {
+		handler.put(request.getKey(), request.getValue().toByteArray());
+
+		responseObserver.onNext(Empty.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming get requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void get(GetRequest request, StreamObserver<GetResponse> responseObserver) {
+		byte[] value = handler.get(request.getKey());
+
+		GetResponse.Builder response = GetResponse.newBuilder().setFound(value != null);
+		if (value != null) {
+			response.setValue(ByteString.copyFrom(value));
+		}
+
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming storeValue requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void storeValue(StoreValueRequest request, StreamObserver<Empty> responseObserver) {
+		handler.storeValue(GrpcTypeHelper.bigIntegerFromIdentifier(request.getIdentifier()),
+			request.getValue().toByteArray());
+
+		responseObserver.onNext(Empty.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming lookupValue requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void lookupValue(LookupValueRequest request, StreamObserver<LookupValueResponse> responseObserver) {
+		List<NodeInfo> path = new ArrayList<>();
+		for (Node node : request.getPathList()) {
+			path.add(GrpcTypeHelper.nodeInfoFromNode(node));
+		}
+		LookupValueResult result = handler.lookupValue(
+			GrpcTypeHelper.bigIntegerFromIdentifier(request.getIdentifier()), request.getOwner(), path);
+
+		LookupValueResponse.Builder response = LookupValueResponse.newBuilder().setFound(result.value != null);
+		if (result.value != null) {
+			response.setValue(ByteString.copyFrom(result.value));
+		}
+		if (result.nextNode != null) {
+			response.setNextNode(GrpcTypeHelper.nodeFromNodeInfo(result.nextNode)).setNextIsOwner(result.nextIsOwner);
+		}
+
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming cacheValue requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void cacheValue(StoreValueRequest request, StreamObserver<Empty> responseObserver) {
+		handler.cacheValue(GrpcTypeHelper.bigIntegerFromIdentifier(request.getIdentifier()),
+			request.getValue().toByteArray());
+
+		responseObserver.onNext(Empty.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming invalidateValue requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void invalidateValue(Identifier request, StreamObserver<Empty> responseObserver) {
+		handler.invalidateValue(GrpcTypeHelper.bigIntegerFromIdentifier(request));
+
+		responseObserver.onNext(Empty.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming aggregate requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void aggregate(AggregateRequest request, StreamObserver<AggregateResponse> responseObserver) {
+		BigInteger start = null;
+		BigInteger limit = null;
+		if (request.hasStart()) {
+			start = GrpcTypeHelper.bigIntegerFromIdentifier(request.getStart());
+			limit = GrpcTypeHelper.bigIntegerFromIdentifier(request.getLimit());
+		}
+
+		AggregateResult result = handler.aggregate(start, limit, request.getTimeout());
+
+		responseObserver.onNext(GrpcTypeHelper.aggregateResponseFromAggregateResult(result));
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming scan requests. The values are streamed as the scan reaches them, followed by the cursor to
+	 * resume the scan from if the limit was reached before the end of the range.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void scan(ScanRequest request, StreamObserver<ScanResponse> responseObserver) {
+		BigInteger cursor = handler.scan(GrpcTypeHelper.bigIntegerFromIdentifier(request.getStart()),
+			GrpcTypeHelper.bigIntegerFromIdentifier(request.getEnd()), request.getLimit(),
+			(identifier, value) -> responseObserver.onNext(ScanResponse.newBuilder().setEntry(ScanEntry.newBuilder()
+				.setIdentifier(GrpcTypeHelper.identifierFromBigInteger(identifier)).setValue(ByteString.copyFrom(value)))
+				.build()));
+		if (cursor != null) {
+			responseObserver.onNext(ScanResponse.newBuilder()
+				.setCursor(GrpcTypeHelper.identifierFromBigInteger(cursor)).build());
+		}
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Handler for incoming scanValues requests.
+	 *
+	 * @param request          the request.
+	 * @param responseObserver observer for the response.
+	 */
+	@Override
+	public void scanValues(ScanRequest request, StreamObserver<ScanEntry> responseObserver) {
+		List<Map.Entry<BigInteger, byte[]>> entries = handler.scanValues(
+			GrpcTypeHelper.bigIntegerFromIdentifier(request.getStart()),
+			GrpcTypeHelper.bigIntegerFromIdentifier(request.getEnd()), request.getLimit());
+
+		for (Map.Entry<BigInteger, byte[]> entry : entries) {
+			responseObserver.onNext(ScanEntry.newBuilder()
+				.setIdentifier(GrpcTypeHelper.identifierFromBigInteger(entry.getKey()))
+				.setValue(ByteString.copyFrom(entry.getValue())).build());
+		}
+		responseObserver.onCompleted();
+	}
 }
@@ -1,6 +1,9 @@
 package se.umu.cs.ads.chord;
 
 import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 /**
  * Interface for methods to handle incoming requests for the Chord node.
@@ -43,6 +46,13 @@ public interface ChordGrpcServerHandler {
 	 */
 	void setPredecessor(NodeInfo predecessor);
 
+	/**
+	 * Hand over the values in a joining node's range to it and take it as the predecessor.
+	 *
+	 * @param node the joining node.
+	 */
+	void handOver(NodeInfo node);
+
 	/**
 	 * Update the finger table with a Chord node at a given index.
 	 *
@@ -60,5 +70,120 @@ public interface ChordGrpcServerHandler {
 	 */
 	NodeInfo closestPrecedingFinger(BigInteger id);
 
+	/**
+	 * Handler for incoming notify requests.
+	 *
+	 * @param potentialPredecessor a potential predecessor of this node.
+	 */
 	void notify(NodeInfo potentialPredecessor);
+
+	/**
+	 * Handler for incoming stabilize requests, which are handled as notify requests.
+	 *
+	 * @param potentialPredecessor a potential predecessor of this node.
+	 * @param fingerVersion        the finger table version that the caller has seen, or 0 for the full table.
+	 *
+	 * @return the predecessor, the successor and changed fingers, the finger table version and the load of this node.
+	 */
+	StabilizeResult stabilize(NodeInfo potentialPredecessor, long fingerVersion);
+
+	/**
+	 * Get the finger table of a Chord node.
+	 *
+	 * @return a copy of the finger table, where the first entry is the successor.
+	 */
+	NodeInfo[] getFingerTable();
+
+	/**
+	 * Get the load of a Chord node, which its predecessor compares with its own load to decide whether to hand over
+	 * part of its range.
+	 *
+	 * @return the number of stored keys plus the number of store reads in the last maintenance round.
+	 */
+	long getLoad();
+
+	/**
+	 * Store a value in the network.
+	 *
+	 * @param key   the key of the value.
+	 * @param value the value.
+	 */
+	void put(String key, byte[] value);
+
+	/**
+	 * Get a value from the network.
+	 *
+	 * @param key the key of the value.
+	 *
+	 * @return the value, or null if there is no value for the key.
+	 */
+	byte[] get(String key);
+
+	/**
+	 * Store a value that this node owns.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param value the value.
+	 */
+	void storeValue(BigInteger id, byte[] value);
+
+	/**
+	 * Perform one step of a value lookup.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param owner whether this node is known to be the owner of the identifier.
+	 * @param path  the nodes that the lookup has passed through, which the owner pushes copies of the value to.
+	 *
+	 * @return the value if this node owns it or has a cached copy of it, otherwise the next node to ask.
+	 */
+	LookupValueResult lookupValue(BigInteger id, boolean owner, List<NodeInfo> path);
+
+	/**
+	 * Store a copy of a value owned by another node in the cache.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param value the value.
+	 */
+	void cacheValue(BigInteger id, byte[] value);
+
+	/**
+	 * Remove a cached copy of a value owned by another node, after the owner has stored a new value.
+	 *
+	 * @param id the identifier of the value.
+	 */
+	void invalidateValue(BigInteger id);
+
+	/**
+	 * Aggregate statistics over the nodes in an identifier interval, which this node should be the first of.
+	 *
+	 * @param start   the start of the interval (inclusive), or null for the whole ring from this node.
+	 * @param limit   the end of the interval (exclusive), or null for the whole ring from this node.
+	 * @param timeout the time in milliseconds to wait for the statistics.
+	 *
+	 * @return the statistics, which are incomplete if some nodes did not answer in time.
+	 */
+	AggregateResult aggregate(BigInteger start, BigInteger limit, long timeout);
+
+	/**
+	 * Scan the values in an identifier range across the network, in ring order.
+	 *
+	 * @param start    the start of the range (exclusive).
+	 * @param end      the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit    the maximum number of values, 0 for no limit.
+	 * @param consumer the consumer of the identifiers and values, in ring order from start.
+	 *
+	 * @return the identifier to resume the scan from, or null if the whole range was scanned.
+	 */
+	BigInteger scan(BigInteger start, BigInteger end, int limit, BiConsumer<BigInteger, byte[]> consumer);
+
+	/**
+	 * Get the values in an identifier range that this node stores.
+	 *
+	 * @param start the start of the range (exclusive).
+	 * @param end   the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit the maximum number of values, 0 for no limit.
+	 *
+	 * @return the identifiers and values, in ring order from start.
+	 */
+	List<Map.Entry<BigInteger, byte[]>> scanValues(BigInteger start, BigInteger end, int limit);
 }
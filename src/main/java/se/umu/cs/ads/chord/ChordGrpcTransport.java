@@ -0,0 +1,106 @@
+package se.umu.cs.ads.chord;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport that makes the calls to other Chord nodes with gRPC.
+ */
+public class ChordGrpcTransport implements ChordTransport {
+	private final int port;
+
+	/**
+	 * Creates a new gRPC transport.
+	 *
+	 * @param port the port to use for connecting to other nodes.
+	 */
+	public ChordGrpcTransport(int port) {
+		this.port = port;
+	}
+
+	@Override
+	public boolean healthCheck(String address, int timeout) {
+		return ChordGrpcClient.healthCheck(address, port, timeout);
+	}
+
+	@Override
+	public NodeInfo findSuccessor(String address, BigInteger identifier) {
+		return ChordGrpcClient.findSuccessor(address, port, identifier);
+	}
+
+	@Override
+	public NodeInfo getSuccessor(String address) {
+		return ChordGrpcClient.getSuccessor(address, port);
+	}
+
+	@Override
+	public NodeInfo getPredecessor(String address) {
+		return ChordGrpcClient.getPredecessor(address, port);
+	}
+
+	@Override
+	public void setPredecessor(String address, NodeInfo predecessor) {
+		ChordGrpcClient.setPredecessor(address, port, predecessor);
+	}
+
+	@Override
+	public void handOver(String address, NodeInfo node) {
+		ChordGrpcClient.handOver(address, port, node);
+	}
+
+	@Override
+	public void updateFingerTable(String address, NodeInfo node, int index) {
+		ChordGrpcClient.updateFingerTable(address, port, node, index);
+	}
+
+	@Override
+	public NodeInfo closestPrecedingFinger(String address, BigInteger identifier) {
+		return ChordGrpcClient.closestPrecedingFinger(address, port, identifier);
+	}
+
+	@Override
+	public void notify(String address, NodeInfo node) {
+		ChordGrpcClient.notify(address, port, node);
+	}
+
+	@Override
+	public StabilizeResult stabilize(String address, NodeInfo node, long fingerVersion) {
+		return ChordGrpcClient.stabilize(address, port, node, fingerVersion);
+	}
+
+	@Override
+	public NodeInfo[] getFingerTable(String address) {
+		return ChordGrpcClient.getFingerTable(address, port);
+	}
+
+	@Override
+	public void storeValue(String address, BigInteger identifier, byte[] value) {
+		ChordGrpcClient.storeValue(address, port, identifier, value);
+	}
+
+	@Override
+	public LookupValueResult lookupValue(String address, BigInteger identifier, boolean owner, List<NodeInfo> path) {
+		return ChordGrpcClient.lookupValue(address, port, identifier, owner, path);
+	}
+
+	@Override
+	public void cacheValue(String address, BigInteger identifier, byte[] value) {
+		ChordGrpcClient.cacheValue(address, port, identifier, value);
+	}
+
+	@Override
+	public void invalidateValue(String address, BigInteger identifier) {
+		ChordGrpcClient.invalidateValue(address, port, identifier);
+	}
+
+	@Override
+	public AggregateResult aggregate(String address, BigInteger start, BigInteger limit, long timeout) {
+		return ChordGrpcClient.aggregate(address, port, start, limit, timeout);
+	}
+
+	@Override
+	public List<Map.Entry<BigInteger, byte[]>> scanValues(String address, BigInteger start, BigInteger end, int limit) {
+		return ChordGrpcClient.scanValues(address, port, start, end, limit);
+	}
+}
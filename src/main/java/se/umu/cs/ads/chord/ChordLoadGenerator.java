@@ -0,0 +1,321 @@
+package se.umu.cs.ads.chord;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+
+/**
+ * Closed-loop load generator for a running Chord network. A number of workers each make one call at a time to
+ * random target nodes, with a configurable mix of operations and distribution of keys. The throughput and the latency
+ * percentiles of each operation are printed for every report interval and for the whole run.
+ * <p>
+ * With a target rate, each worker starts its calls on a fixed schedule, and the latency is measured from the
+ * scheduled start. A call that is delayed by a slow previous call then counts the delay, instead of hiding it by
+ * making fewer calls.
+ * <p>
+ * Each target node has one channel that all workers share for the whole run, so that the measured latency does not
+ * include connection setup.
+ */
+public class ChordLoadGenerator {
+	private static final int defaultPort = 4321;
+	private static final int hashBits = 160;
+
+	private static final String usage = "Usage: ChordLoadGenerator [--targets HOST[:PORT],...]" +
+		" [--mix lookup=W,put=W,get=W] [--distribution uniform|zipf|sequential] [--keys K] [--zipf-exponent S]" +
+		" [--value-size BYTES] [--concurrency N] [--rate PER_SECOND] [--duration SECONDS]" +
+		" [--report-interval SECONDS]";
+
+	private enum Operation {
+		LOOKUP, PUT, GET
+	}
+
+	private enum Distribution {
+		UNIFORM, ZIPF, SEQUENTIAL
+	}
+
+	private final ManagedChannel[] channels;
+	private final ChordServiceGrpc.ChordServiceBlockingStub[] stubs;
+	private final Operation[] operations = Operation.values();
+	private final double[] operationWeights; // Cumulative probability of each operation
+	private final Distribution distribution;
+	private final int keyCount;
+	private final double[] keyPopularity; // Cumulative probability of each key for the Zipf distribution
+	private final int valueSize;
+	private final int concurrency;
+	private final double rate; // Calls per second over all workers, 0 for as fast as possible
+
+	private final AtomicLong nextSequentialKey = new AtomicLong();
+	private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class); // Latencies in microseconds
+	private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+	private final AtomicLong missingValues = new AtomicLong();
+
+	/**
+	 * Creates a load generator.
+	 *
+	 * @param targets      the nodes to make calls to, as host or host:port.
+	 * @param mix          the relative weight of each operation.
+	 * @param distribution the distribution of the keys.
+	 * @param keyCount     the number of distinct keys.
+	 * @param zipfExponent the exponent of the Zipf distribution.
+	 * @param valueSize    the size of the values that are put, in bytes.
+	 * @param concurrency  the number of workers, each making one call at a time.
+	 * @param rate         the number of calls per second over all workers, 0 for as fast as possible.
+	 */
+	private ChordLoadGenerator(List<String> targets, Map<Operation, Double> mix, Distribution distribution,
+		int keyCount, double zipfExponent, int valueSize, int concurrency, double rate) {
+		channels = new ManagedChannel[targets.size()];
+		stubs = new ChordServiceGrpc.ChordServiceBlockingStub[targets.size()];
+		for (int i = 0; i < targets.size(); i++) {
+			String[] parts = targets.get(i).split(":");
+			int port = parts.length > 1 ? Integer.parseInt(parts[1]) : defaultPort;
+			channels[i] = ManagedChannelBuilder.forAddress(parts[0], port).usePlaintext().build();
+			stubs[i] = ChordServiceGrpc.newBlockingStub(channels[i]);
+		}
+
+		operationWeights = new double[operations.length];
+		double total = 0;
+		for (int i = 0; i < operations.length; i++) {
+			total += mix.getOrDefault(operations[i], 0.0);
+			operationWeights[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("The operation mix must have a positive weight");
+		}
+		for (int i = 0; i < operations.length; i++) {
+			operationWeights[i] /= total;
+		}
+
+		this.distribution = distribution;
+		this.keyCount = keyCount;
+		keyPopularity = new double[distribution == Distribution.ZIPF ? keyCount : 0];
+		total = 0;
+		for (int i = 0; i < keyPopularity.length; i++) {
+			total += 1 / Math.pow(i + 1, zipfExponent);
+			keyPopularity[i] = total;
+		}
+		for (int i = 0; i < keyPopularity.length; i++) {
+			keyPopularity[i] /= total;
+		}
+
+		this.valueSize = valueSize;
+		this.concurrency = concurrency;
+		this.rate = rate;
+		for (Operation operation : operations) {
+			recorders.put(operation, new Recorder(3));
+			errors.put(operation, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Run the load and print a report for every interval and a summary at the end. The channels to the targets are
+	 * shut down when the run is over.
+	 *
+	 * @param duration       the length of the run in milliseconds.
+	 * @param reportInterval the time between reports in milliseconds.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers.
+	 */
+	private void run(long duration, long reportInterval) throws InterruptedException {
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++) {
+			// Spread the scheduled starts of the workers evenly over one interval
+			long firstStart = rate > 0 ? start + (long) (i * 1e9 / rate) : start;
+			Thread worker = new Thread(() -> work(firstStart, end), "load-worker-" + i);
+			worker.start();
+			workers.add(worker);
+		}
+
+		Map<Operation, Histogram> totals = new EnumMap<>(Operation.class);
+		Map<Operation, Histogram> intervals = new EnumMap<>(Operation.class);
+		for (Operation operation : operations) {
+			totals.put(operation, new Histogram(3));
+		}
+		long lastReport = start;
+		while (lastReport < end) {
+			long nextReport = Math.min(lastReport + TimeUnit.MILLISECONDS.toNanos(reportInterval), end);
+			TimeUnit.NANOSECONDS.sleep(Math.max(0, nextReport - System.nanoTime()));
+			long now = System.nanoTime();
+			System.out.println(String.format("[%7.1f s]", (now - start) / 1e9));
+			for (Operation operation : operations) {
+				Histogram interval = recorders.get(operation).getIntervalHistogram(intervals.get(operation));
+				intervals.put(operation, interval);
+				totals.get(operation).add(interval);
+				printLatencies(operation, interval, now - lastReport);
+			}
+			lastReport = now;
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		for (ManagedChannel channel : channels) {
+			channel.shutdown();
+		}
+		for (ManagedChannel channel : channels) {
+			channel.awaitTermination(5, TimeUnit.SECONDS);
+		}
+
+		System.out.println("Summary over " + String.format("%.1f", (System.nanoTime() - start) / 1e9) + " s with " +
+			concurrency + " workers" + (rate > 0 ? " at a target rate of " + rate + " calls/s" : "") + ":");
+		for (Operation operation : operations) {
+			Histogram total = totals.get(operation);
+			total.add(recorders.get(operation).getIntervalHistogram());
+			printLatencies(operation, total, end - start);
+			if (total.getTotalCount() > 0 || errors.get(operation).get() > 0) {
+				System.out.println("\terrors: " + errors.get(operation).get() +
+					(operation == Operation.GET ? ", not found: " + missingValues.get() : ""));
+			}
+		}
+	}
+
+	private void work(long firstStart, long end) {
+		MessageDigest hasher;
+		try {
+			hasher = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		long interval = rate > 0 ? (long) (concurrency * 1e9 / rate) : 0;
+		long scheduledStart = firstStart;
+		byte[] value = new byte[valueSize];
+		while (true) {
+			long callStart;
+			if (rate > 0) {
+				callStart = scheduledStart;
+				scheduledStart += interval;
+				long wait = callStart - System.nanoTime();
+				if (wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} else {
+				callStart = System.nanoTime();
+			}
+			if (callStart >= end || System.nanoTime() >= end) { // Calls that are behind schedule are not caught up
+				return;
+			}
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Operation operation = nextOperation(random.nextDouble());
+			String key = "key-" + nextKey(random);
+			ChordServiceGrpc.ChordServiceBlockingStub stub = stubs[random.nextInt(stubs.length)];
+			try {
+				switch (operation) {
+					case LOOKUP:
+						// Identifiers of keys are SHA-1 hashes, like in the nodes
+						BigInteger id = new BigInteger(1, hasher.digest(key.getBytes())).and(
+							BigInteger.ONE.shiftLeft(hashBits).subtract(BigInteger.ONE));
+						stub.findSuccessor(GrpcTypeHelper.identifierFromBigInteger(id));
+						break;
+					case PUT:
+						random.nextBytes(value);
+						stub.put(PutRequest.newBuilder().setKey(key).setValue(ByteString.copyFrom(value)).build());
+						break;
+					case GET:
+						if (!stub.get(GetRequest.newBuilder().setKey(key).build()).getFound()) {
+							missingValues.incrementAndGet();
+						}
+						break;
+				}
+				recorders.get(operation).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - callStart));
+			} catch (StatusRuntimeException e) {
+				errors.get(operation).incrementAndGet();
+			}
+		}
+	}
+
+	private Operation nextOperation(double sample) {
+		for (int i = 0; i < operations.length; i++) {
+			if (sample < operationWeights[i]) {
+				return operations[i];
+			}
+		}
+		return operations[operations.length - 1];
+	}
+
+	private long nextKey(ThreadLocalRandom random) {
+		switch (distribution) {
+			case ZIPF:
+				int rank = Arrays.binarySearch(keyPopularity, random.nextDouble());
+				if (rank < 0) {
+					rank = -rank - 1;
+				}
+				return Math.min(rank, keyCount - 1);
+			case SEQUENTIAL:
+				return nextSequentialKey.getAndIncrement() % keyCount;
+			default:
+				return random.nextInt(keyCount);
+		}
+	}
+
+	private static void printLatencies(Operation operation, Histogram histogram, long elapsed) {
+		long count = histogram.getTotalCount();
+		if (count == 0) {
+			return;
+		}
+		System.out.println(String.format("\t%-7s %8d calls %9.1f/s   latency ms: p50=%.2f p90=%.2f p99=%.2f" +
+				" p99.9=%.2f max=%.2f", operation.name().toLowerCase(), count, count / (elapsed / 1e9),
+			histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+			histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+			histogram.getMaxValue() / 1000.0));
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+			System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+		}
+
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 >= args.length) {
+				System.err.println(usage);
+				System.exit(1);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		List<String> targets = Arrays.asList(options.getOrDefault("targets", "localhost").split(","));
+		Map<Operation, Double> mix = new EnumMap<>(Operation.class);
+		for (String weight : options.getOrDefault("mix", "lookup=1,put=1,get=8").split(",")) {
+			String[] parts = weight.split("=");
+			mix.put(Operation.valueOf(parts[0].toUpperCase()), Double.parseDouble(parts[1]));
+		}
+		Distribution distribution = Distribution.valueOf(
+			options.getOrDefault("distribution", "uniform").toUpperCase());
+		int keyCount = Integer.parseInt(options.getOrDefault("keys", "10000"));
+		double zipfExponent = Double.parseDouble(options.getOrDefault("zipf-exponent", "1"));
+		int valueSize = Integer.parseInt(options.getOrDefault("value-size", "100"));
+		int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+		double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+		long duration = (long) (Double.parseDouble(options.getOrDefault("duration", "60")) * 1000);
+		long reportInterval = (long) (Double.parseDouble(options.getOrDefault("report-interval", "10")) * 1000);
+
+		ChordLoadGenerator generator = new ChordLoadGenerator(targets, mix, distribution, keyCount, zipfExponent,
+			valueSize, concurrency, rate);
+		System.out.println("Running " + mix + " with " + distribution.name().toLowerCase() + " keys against " +
+			targets + " for " + duration / 1000.0 + " s");
+		generator.run(duration, reportInterval);
+	}
+}
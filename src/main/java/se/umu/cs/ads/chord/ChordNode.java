@@ -1,37 +1,108 @@
 package se.umu.cs.ads.chord;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
 public class ChordNode implements ChordGrpcServerHandler {
 	private static final int port = 4321;
 	private static final int hashBits = 160;
 	private static final BigInteger hashRangeSize = BigInteger.ONE.shiftLeft(hashBits);
+	private static final int healthCheckTimeout = 150;
+	private static final int joinHealthCheckTimeout = 5000; // Includes setting up gRPC in a node that just started
+	private static final int maintenanceInterval = 1000; // Milliseconds between stabilize and fixFingers
+	private static final int snapshotInterval = 10000; // Milliseconds between routing snapshots
+	private static final Path defaultSnapshotFile = Paths.get("chord-routing.snapshot");
+	private static final int cacheCapacity = 1024; // Number of cached values owned by other nodes
+	private static final int cacheTimeToLive = 30000; // Milliseconds until a cached value expires
+	private static final int popularKeyThreshold = 10; // Reads per maintenance round to push a key to the predecessor
+	private static final int aggregateTimeoutMargin = 50; // Milliseconds each level keeps for combining results
+	private static final int minimumMigrationLoad = 10; // Load below which a node never hands over part of its range
+	private static final int scanConcurrency = 8; // Nodes that a scan fetches values from at the same time
+	private static final int keyLockStripes = 64; // Locks that order the stores and cache pushes of owned values
 
 	private final Logger logger = LoggerFactory.getLogger(ChordNode.class);
 
-	private final ChordGrpcServer server; // Server for incoming requests
+	private final ChordGrpcServer server; // Server for incoming requests, or null when simulated
+	private final ChordTransport transport; // Transport for outgoing requests
 	private final MessageDigest hasher;
 
-	private static final int fingerTableSize = 3; // 1 for only successor
-	private final NodeInfo[] fingerTable = new NodeInfo[fingerTableSize];
-	private NodeInfo predecessor; // Predecessor's address and identifier
-	private final NodeInfo localNode; // This node's address and identifier
+	// Fingers spanning the whole ring, so that lookups and aggregates take O(log N) hops. 1 for only successor.
+	private static final int defaultFingerTableSize = hashBits;
+	private final int fingerTableSize;
+	private final NodeInfo[] fingerTable;
+	private final long[] fingerVersions; // Finger table version in which each finger last changed
+	private long fingerTableVersion; // Incremented when a finger changes, guarded by fingerTable
+	private volatile NodeInfo predecessor; // Predecessor's address and identifier
+	private volatile NodeInfo localNode; // This node's address and identifier, which moves when rebalancing load
 
 	private int nextFingerToFix;
+	private String stabilizedSuccessor; // Address of the successor at the last stabilize, or null
+	private long successorFingerVersion; // The successor's finger table version at the last stabilize
+	private volatile NodeInfo nextSuccessor; // The successor's successor at the last stabilize, or null
+
+	private final ConcurrentSkipListMap<BigInteger, byte[]> store = new ConcurrentSkipListMap<>(); // Owned values
+	private final ValueCache cache; // Copies of values owned by other nodes
+	private final Map<BigInteger, Set<String>> cacheHolders = new ConcurrentHashMap<>(); // Copies of owned values
+	private final Object[] keyLocks = createKeyLocks(); // Guard the values in store and their cacheHolders entries
+	private volatile Map<BigInteger, Integer> readCounts = new ConcurrentHashMap<>(); // Reads since the last push
+	private final AtomicLong storeReads = new AtomicLong(); // Lookups answered from the store
+	private final AtomicLong cacheReads = new AtomicLong(); // Lookups answered from the cache
+
+	private volatile double loadImbalanceBound; // Allowed ratio between this node's and the successor's load, 0 for any
+	private volatile long load; // Stored keys plus store reads in the last maintenance round
+	private long lastStoreReads; // Store reads at the end of the last maintenance round
+	private volatile long successorLoad = -1; // The successor's load, or -1 if unknown
+	private final AtomicBoolean migrating = new AtomicBoolean(); // Whether keys are being handed over to the successor
+	// The start (exclusive) of the range last handed over to a joining predecessor, and that predecessor, or null
+	private volatile Map.Entry<BigInteger, NodeInfo> joinedRange;
+
+	private final ExecutorService lookupExecutor; // For concurrent lookups
+	private final ScheduledExecutorService maintenanceExecutor; // null when simulated
+	private final Path snapshotFile; // File for persisting the routing state, or null
 
 	/**
-	 * Constructor for a Chord node that also connects to an existing Chord network.
+	 * Constructor for a Chord node that also connects to an existing Chord network. The routing state is persisted
+	 * to the default snapshot file.
 	 *
 	 * @param otherNode address to a Chord node in an existing Chord network.
 	 *
@@ -39,14 +110,79 @@ public class ChordNode implements ChordGrpcServerHandler {
 	 * @throws IOException              if there is an error with address resolution or server initialization.
 	 */
 	public ChordNode(String otherNode) throws NoSuchAlgorithmException, IOException {
+		this(otherNode, defaultSnapshotFile);
+	}
+
+	/**
+	 * Constructor for a Chord node that also connects to an existing Chord network. If the snapshot file contains
+	 * routing state from a previous run of this node, the node restarts from the entries in it that are still alive
+	 * instead of joining from scratch.
+	 *
+	 * @param otherNode    address to a Chord node in an existing Chord network.
+	 * @param snapshotFile file for persisting the routing state, or null to disable snapshots.
+	 *
+	 * @throws NoSuchAlgorithmException if a MessageDigest for SHA-1 cannot be found.
+	 * @throws IOException              if there is an error with address resolution or server initialization.
+	 */
+	public ChordNode(String otherNode, Path snapshotFile) throws NoSuchAlgorithmException, IOException {
+		this.snapshotFile = snapshotFile;
 		hasher = MessageDigest.getInstance("SHA-1");
-		String localNodeAddress = InetAddress.getLocalHost().getHostAddress(); // Get the node's own address
+		fingerTableSize = Integer.getInteger("chord.fingers", defaultFingerTableSize);
+		if (fingerTableSize < 1 || fingerTableSize > hashBits) {
+			throw new IllegalArgumentException("The number of fingers must be between 1 and " + hashBits);
+		}
+		fingerTable = new NodeInfo[fingerTableSize];
+		fingerVersions = new long[fingerTableSize];
+		transport = new ChordGrpcTransport(port);
+		lookupExecutor = Executors.newCachedThreadPool();
+		cache = new ValueCache(cacheCapacity, cacheTimeToLive, System::currentTimeMillis);
+		maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+		// Get the node's own address, which the server only binds to if it is given
+		String boundAddress = System.getProperty("chord.address");
+		String localNodeAddress = boundAddress != null ? boundAddress : InetAddress.getLocalHost().getHostAddress();
 		BigInteger localNodeId = calculateHash(localNodeAddress); // Calculate the node's own identifier
 		localNode = new NodeInfo(localNodeId, localNodeAddress);
 		// Start server for requests from other nodes
-		server = new ChordGrpcServer(this, port);
-		logger.info("Node 0x" + localNode.id.toString(16) + " is listening on " + localNode.address + ":" + port);
-		join(otherNode);
+		ServerExecutionModel executionModel = ServerExecutionModel.fromName(
+			System.getProperty("chord.server.executor", "cached"));
+		int serverThreads = Integer.getInteger("chord.server.threads", Runtime.getRuntime().availableProcessors());
+		boolean inlineNonBlockingCalls = Boolean.parseBoolean(System.getProperty("chord.server.inline",
+			String.valueOf(executionModel == ServerExecutionModel.BOUNDED)));
+		server = new ChordGrpcServer(this, boundAddress, port, executionModel, serverThreads, inlineNonBlockingCalls);
+		setLoadImbalanceBound(Double.parseDouble(System.getProperty("chord.rebalance.bound", "0")));
+		logger.info("Node 0x" + localNode.id.toString(16) + " is listening on " + localNode.address + ":" + port +
+			" (executor: " + executionModel + ", inline non-blocking calls: " + inlineNonBlockingCalls + ")");
+		if (!restoreSnapshot(otherNode)) {
+			join(otherNode);
+		}
+		startMaintenance();
+	}
+
+	/**
+	 * Constructor for a Chord node without a server, snapshots or periodic maintenance. The node does not join a
+	 * network on its own; the caller drives join and the maintenance methods. Used by the simulator.
+	 *
+	 * @param localNode       this node's address and identifier.
+	 * @param fingerTableSize the number of entries in the finger table.
+	 * @param transport       the transport for calls to other nodes.
+	 * @param lookupExecutor  the executor for concurrent lookups.
+	 * @param cache           the cache for values owned by other nodes.
+	 *
+	 * @throws NoSuchAlgorithmException if a MessageDigest for SHA-1 cannot be found.
+	 */
+	ChordNode(NodeInfo localNode, int fingerTableSize, ChordTransport transport, ExecutorService lookupExecutor,
+		ValueCache cache) throws NoSuchAlgorithmException {
+		this.localNode = localNode;
+		this.fingerTableSize = fingerTableSize;
+		this.transport = transport;
+		this.lookupExecutor = lookupExecutor;
+		this.cache = cache;
+		hasher = MessageDigest.getInstance("SHA-1");
+		fingerTable = new NodeInfo[fingerTableSize];
+		fingerVersions = new long[fingerTableSize];
+		server = null;
+		maintenanceExecutor = null;
+		snapshotFile = null;
 	}
 
 	public BigInteger getLocalId() {
@@ -57,6 +193,46 @@ public class ChordNode implements ChordGrpcServerHandler {
 		return localNode.address;
 	}
 
+	/**
+	 * Set how much more load this node may have than its successor before it hands over part of its range. Since
+	 * every node compares itself with its successor, the ratio between neighbouring loads converges to the bound.
+	 *
+	 * @param bound the maximum ratio, which must be greater than 1, or 0 to never hand over any part of the range.
+	 */
+	void setLoadImbalanceBound(double bound) {
+		if (bound != 0 && !(bound > 1)) {
+			throw new IllegalArgumentException("Load imbalance bound must be greater than 1, or 0 to disable it");
+		}
+		loadImbalanceBound = bound;
+	}
+
+	/**
+	 * Get the number of values that this node stores.
+	 *
+	 * @return the number of values.
+	 */
+	public int getKeyCount() {
+		return store.size();
+	}
+
+	/**
+	 * Get the number of value lookups that this node has answered from its own store.
+	 *
+	 * @return the number of lookups.
+	 */
+	public long getStoreReads() {
+		return storeReads.get();
+	}
+
+	/**
+	 * Get the number of value lookups that this node has answered from its cache.
+	 *
+	 * @return the number of lookups.
+	 */
+	public long getCacheReads() {
+		return cacheReads.get();
+	}
+
 	@Override
 	public String toString() {
 		return "ChordNode{" + "\n\tfingerTable=" + Arrays.toString(fingerTable) + "\n\tpredecessorNode=" +
@@ -70,6 +246,8 @@ public class ChordNode implements ChordGrpcServerHandler {
 	public void shutdown() {
 		logger.info("Shutting down the node");
 		server.shutdown();
+		maintenanceExecutor.shutdown();
+		lookupExecutor.shutdown();
 	}
 
 	/**
@@ -88,7 +266,7 @@ public class ChordNode implements ChordGrpcServerHandler {
 	 *
 	 * @return the 160-bit hash value.
 	 */
-	private BigInteger calculateHash(String input) {
+	private synchronized BigInteger calculateHash(String input) {
 		byte[] hashBytes = hasher.digest(input.getBytes());
 
 		// Set the number of hash bits to use. Ignores any higher bits.
@@ -105,17 +283,23 @@ public class ChordNode implements ChordGrpcServerHandler {
 	 *
 	 * @param otherNode the address to a node in the existing network.
 	 */
-	private void join(String otherNode) {
+	void join(String otherNode) {
 		if (otherNode != null) { // Should join another node
 			logger.info("Joining node at " + otherNode);
+			long joinStart = System.nanoTime();
+			// Fails when the other node is down or uses another wire protocol version, which a node that joins
+			// would otherwise only notice when its identifiers or finger tables are rejected halfway through the join
+			if (!transport.healthCheck(otherNode, joinHealthCheckTimeout)) {
+				throw new IllegalStateException("Node at " + otherNode + " is not healthy, cannot join through it");
+			}
 			initFingerTable(otherNode);
-			updateOthers();
-			// TODO: move keys in (predecessor, n] from successor
+			updateOthers(localNode.id);
+			logger.info("Joined the network in " + (System.nanoTime() - joinStart) / 1000000 + " ms");
 		} else { // This is the only node in the network
 			logger.info("Creating a new Chord network");
 			// All fingers point to the node itself
 			for (int i = 0; i < fingerTableSize; i++) {
-				fingerTable[i] = localNode;
+				setFinger(i, localNode);
 			}
 			// The predecessor is the node itself
 			predecessor = localNode;
@@ -123,44 +307,261 @@ public class ChordNode implements ChordGrpcServerHandler {
 	}
 
 	/**
-	 * Initialize finger table of local node.
+	 * Set the routing state directly instead of joining. Used by the simulator to start from a converged ring.
+	 *
+	 * @param fingers     the finger table, where the first entry is the successor.
+	 * @param predecessor the predecessor.
+	 */
+	void initRoutingState(NodeInfo[] fingers, NodeInfo predecessor) {
+		for (int i = 0; i < fingerTableSize; i++) {
+			setFinger(i, fingers[i]);
+		}
+		this.predecessor = predecessor;
+	}
+
+	/**
+	 * Restore the routing state from the snapshot file. All nodes in the snapshot are health checked concurrently, and
+	 * only the ones that respond are used. Fingers that failed are replaced by the preceding finger until maintenance
+	 * repairs them.
+	 *
+	 * @param otherNode the address to a node in the existing network, or null if this is the only node.
+	 *
+	 * @return true if the routing state was restored, false if the node has to join the network.
+	 */
+	private boolean restoreSnapshot(String otherNode) {
+		if (snapshotFile == null || !Files.exists(snapshotFile)) {
+			return false;
+		}
+
+		RoutingSnapshot snapshot;
+		try (InputStream input = Files.newInputStream(snapshotFile)) {
+			snapshot = RoutingSnapshot.parseFrom(input);
+		} catch (IOException e) {
+			logger.warn("Could not read routing snapshot " + snapshotFile + ": " + e.getMessage());
+			return false;
+		}
+
+		NodeInfo snapshotNode = GrpcTypeHelper.nodeInfoFromNode(snapshot.getLocalNode());
+		if (!snapshotNode.address.equals(localNode.address) || snapshot.getFingersCount() != fingerTableSize) {
+			logger.info("Routing snapshot is from another node, ignoring it");
+			return false;
+		}
+
+		NodeInfo[] fingers = new NodeInfo[fingerTableSize];
+		for (int i = 0; i < fingerTableSize; i++) {
+			fingers[i] = GrpcTypeHelper.nodeInfoFromNode(snapshot.getFingers(i));
+		}
+		NodeInfo snapshotPredecessor = null;
+		if (snapshot.hasPredecessor()) {
+			snapshotPredecessor = GrpcTypeHelper.nodeInfoFromNode(snapshot.getPredecessor());
+		}
+		if (otherNode != null && fingers[0].address.equals(localNode.address)) {
+			logger.info("Routing snapshot is from a network with only this node, ignoring it");
+			return false;
+		}
+
+		// Health check every distinct node in the snapshot concurrently
+		Map<String, CompletableFuture<Boolean>> checks = new HashMap<>();
+		List<NodeInfo> snapshotNodes = new ArrayList<>(Arrays.asList(fingers));
+		if (snapshotPredecessor != null) {
+			snapshotNodes.add(snapshotPredecessor);
+		}
+		for (NodeInfo node : snapshotNodes) {
+			if (!node.address.equals(localNode.address)) {
+				checks.computeIfAbsent(node.address,
+					address -> CompletableFuture.supplyAsync(() -> isAlive(address), lookupExecutor));
+			}
+		}
+
+		if (!isVerified(fingers[0], checks)) {
+			logger.info("Successor in routing snapshot is not responding, joining instead");
+			return false;
+		}
+		setFinger(0, fingers[0]);
+		for (int i = 1; i < fingerTableSize; i++) {
+			setFinger(i, isVerified(fingers[i], checks) ? fingers[i] : fingerTable[i - 1]);
+		}
+		predecessor = snapshotPredecessor != null && isVerified(snapshotPredecessor, checks) ? snapshotPredecessor :
+			null;
+		if (!snapshotNode.id.equals(localNode.id)) {
+			// The identifier was moved to rebalance load before the restart
+			localNode = snapshotNode;
+			logger.info("Restored moved identifier 0x" + localNode.id.toString(16));
+		}
+		logger.info("Restored routing state from " + snapshotFile + " with " + checks.size() + " responding nodes");
+		return true;
+	}
+
+	private boolean isVerified(NodeInfo node, Map<String, CompletableFuture<Boolean>> checks) {
+		return node.address.equals(localNode.address) || checks.get(node.address).join();
+	}
+
+	/**
+	 * Check if a node responds to health checks.
+	 *
+	 * @param address the address to the node.
+	 *
+	 * @return true if the node is healthy, false if it failed or did not respond in time.
+	 */
+	private boolean isAlive(String address) {
+		try {
+			return transport.healthCheck(address, healthCheckTimeout);
+		} catch (StatusRuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write the current routing state to the snapshot file. The file is replaced atomically so that a crash while
+	 * writing does not leave a partial snapshot.
+	 */
+	private void writeSnapshot() {
+		if (snapshotFile == null) {
+			return;
+		}
+
+		RoutingSnapshot.Builder snapshot = RoutingSnapshot.newBuilder()
+			.setLocalNode(GrpcTypeHelper.nodeFromNodeInfo(localNode));
+		NodeInfo currentPredecessor = predecessor;
+		if (currentPredecessor != null) {
+			snapshot.setPredecessor(GrpcTypeHelper.nodeFromNodeInfo(currentPredecessor));
+		}
+		for (NodeInfo finger : getFingerTable()) {
+			snapshot.addFingers(GrpcTypeHelper.nodeFromNodeInfo(finger));
+		}
+
+		try {
+			Path temporaryFile = Files.createTempFile(snapshotFile.toAbsolutePath().getParent(), "chord", ".tmp");
+			try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+				snapshot.build().writeTo(output);
+			}
+			Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Could not write routing snapshot " + snapshotFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Start the periodic maintenance of the routing state and the periodic routing snapshots.
+	 */
+	private void startMaintenance() {
+		maintenanceExecutor.scheduleWithFixedDelay(this::maintain, 0, maintenanceInterval, TimeUnit.MILLISECONDS);
+		maintenanceExecutor.scheduleWithFixedDelay(this::writeSnapshot, snapshotInterval, snapshotInterval,
+			TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Initialize finger table of local node. The finger table is seeded from the successor's finger table, and the
+	 * fingers that cannot be derived from it are looked up concurrently.
 	 *
 	 * @param address an arbitrary node already in the network
 	 */
 	private void initFingerTable(String address) {
-		fingerTable[0] = ChordGrpcClient.findSuccessor(address, port, fingerStart(0));
+		setFinger(0, transport.findSuccessor(address, fingerStart(0)));
 		logger.info("My successor is " + fingerTable[0]);
 
-		// predecessor = successor.predecessor
-		predecessor = ChordGrpcClient.getPredecessor(fingerTable[0].address, port);
+		// predecessor = successor.predecessor, left unknown for stabilize to fill in if the successor has none
+		try {
+			predecessor = transport.getPredecessor(fingerTable[0].address);
+		} catch (StatusRuntimeException e) {
+			if (e.getStatus().getCode() != Status.Code.NOT_FOUND) {
+				throw e;
+			}
+			predecessor = null;
+		}
 		logger.info("My predecessor is " + predecessor);
 
-		// successor.predecessor = this node
-		ChordGrpcClient.setPredecessor(fingerTable[0].address, port, localNode);
+		NodeInfo[] successorFingers = transport.getFingerTable(fingerTable[0].address);
+
+		// successor.predecessor = this node, after the successor has handed over the values in (predecessor, n]
+		transport.handOver(fingerTable[0].address, localNode);
 
-		// TODO: double-check and test
-		for (int i = 0; i < fingerTableSize - 1; i++) {
-			logger.info("Initializing finger table at index " + (i + 1));
-			if (RangeUtils.valueIsInRangeInclExcl(fingerStart(i + 1), localNode.id, fingerTable[i].id, hashRangeSize)) {
-				fingerTable[i + 1] = fingerTable[i];
+		List<Integer> unresolved = new ArrayList<>();
+		for (int i = 1; i < fingerTableSize; i++) {
+			NodeInfo finger = knownSuccessor(fingerStart(i), successorFingers);
+			if (finger == null) {
+				unresolved.add(i);
 			} else {
-				fingerTable[i + 1] = ChordGrpcClient.findSuccessor(address, port, fingerStart(i + 1));
+				setFinger(i, finger);
+				logger.info("Finger " + i + " is " + finger + " (from successor's finger table)");
+			}
+		}
+
+		List<CompletableFuture<NodeInfo>> lookups = new ArrayList<>();
+		for (int i : unresolved) {
+			BigInteger start = fingerStart(i);
+			lookups.add(CompletableFuture.supplyAsync(() -> transport.findSuccessor(address, start), lookupExecutor));
+		}
+		for (int i = 0; i < unresolved.size(); i++) {
+			int finger = unresolved.get(i);
+			try {
+				setFinger(finger, lookups.get(i).join());
+			} catch (CompletionException e) {
+				// The successor already counts on this node for its values, so the join carries on. The preceding
+				// finger is a safe stand-in until fixFingers gets to it.
+				logger.warn("Could not look up finger " + finger + ": " + e.getCause().getMessage());
+				setFinger(finger, fingerTable[finger - 1]);
+			}
+			logger.info("Finger " + finger + " is " + fingerTable[finger]);
+		}
+	}
+
+	/**
+	 * Find the successor of an identifier using only the routing state known while joining. Finger j of the successor
+	 * is the first node in [successor + 2^j, finger j], so it is the successor of every identifier in that range,
+	 * unless this node is between the identifier and the finger.
+	 *
+	 * @param id               the identifier to find the successor of.
+	 * @param successorFingers the finger table of the successor.
+	 *
+	 * @return the successor of the identifier, or null if it cannot be determined without a lookup.
+	 */
+	private NodeInfo knownSuccessor(BigInteger id, NodeInfo[] successorFingers) {
+		NodeInfo successor = fingerTable[0];
+		if (RangeUtils.valueIsInRangeInclIncl(id, localNode.id, successor.id, hashRangeSize)) {
+			return successor;
+		}
+		for (int j = 0; j < successorFingers.length; j++) {
+			BigInteger start = successor.id.add(BigInteger.ONE.shiftLeft(j)).mod(hashRangeSize);
+			NodeInfo finger = successorFingers[j];
+			if (RangeUtils.valueIsInRangeInclIncl(id, start, finger.id, hashRangeSize)) {
+				if (RangeUtils.valueIsInRangeInclExcl(localNode.id, id, finger.id, hashRangeSize)) {
+					return localNode;
+				}
+				return finger;
 			}
-			logger.info("Finger " + (i + 1) + " is " + fingerTable[i + 1]);
 		}
+		return null;
 	}
 
 	/**
-	 * Update all nodes whose finger tables should refer to this node.
+	 * Update all nodes whose finger tables should refer to this node. The updates are independent of each other and
+	 * are done concurrently. An update that fails, because it was routed to a node that has failed, is left to the
+	 * fixFingers of the nodes it was meant for.
+	 *
+	 * @param id the identifier that other nodes know this node by, which differs from the current identifier after
+	 *           the node has moved. The nodes whose fingers refer to the old identifier are updated as well.
 	 */
-	private void updateOthers() {
+	private void updateOthers(BigInteger id) {
+		List<CompletableFuture<Void>> updates = new ArrayList<>();
 		for (int i = 0; i < fingerTableSize; i++) {
-			// find last node p whose ith finger might be this node
-			// p = find_predecessor(n - 2^(i));
-			NodeInfo p = findPredecessor(localNode.id.subtract(BigInteger.ONE.shiftLeft(i)));
-			// p.update_finger_table(n, i);
-			ChordGrpcClient.updateFingerTable(p.address, port, localNode, i);
+			int index = i;
+			updates.add(CompletableFuture.runAsync(() -> {
+				// find last node p whose ith finger might be this node
+				// p = find_predecessor(n - 2^(i));
+				NodeInfo p = findPredecessor(id.subtract(BigInteger.ONE.shiftLeft(index)).mod(hashRangeSize));
+				if (p.address.equals(localNode.address)) { // The node has moved to before n - 2^i
+					p = predecessor;
+				}
+				// p.update_finger_table(n, i);
+				transport.updateFingerTable(p.address, localNode, index);
+			}, lookupExecutor).exceptionally(e -> {
+				logger.warn("Could not update finger " + index + " of other nodes: " + e.getMessage());
+				return null;
+			}));
 		}
+		CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0])).join();
 	}
 
 	/**
@@ -176,8 +577,37 @@ public class ChordNode implements ChordGrpcServerHandler {
 		NodeInfo nPrimeSuccessor = fingerTable[0];
 		while (!((RangeUtils.valueIsInRangeExclIncl(id, nPrime.id, nPrimeSuccessor.id, hashRangeSize)) ||
 			nPrime.address.equals(nPrimeSuccessor.address))) {
-			nPrime = ChordGrpcClient.closestPrecedingFinger(nPrime.address, port, id);
-			nPrimeSuccessor = ChordGrpcClient.getSuccessor(nPrime.address, port);
+			NodeInfo previous = nPrime;
+			NodeInfo previousSuccessor = nPrimeSuccessor;
+			nPrime = closestPrecedingFingerOf(previous, id);
+			nPrimeSuccessor = null;
+			while (nPrimeSuccessor == null) {
+				try {
+					nPrimeSuccessor = nPrime.address.equals(localNode.address) ? fingerTable[0] :
+						transport.getSuccessor(nPrime.address);
+				} catch (StatusRuntimeException e) {
+					if (e.getStatus().getCode() != Status.Code.UNAVAILABLE) {
+						throw e;
+					}
+					// The finger has failed and is not repaired yet, route around it through a closer finger
+					NodeInfo detour = closestPrecedingFingerOf(previous, nPrime.id);
+					if (detour.address.equals(previous.address)) {
+						// No finger precedes the failed one, but the successor may still be on the way to it
+						detour = previousSuccessor;
+						if (!RangeUtils.valueIsInRangeExclExcl(detour.id, previous.id, nPrime.id, hashRangeSize)) {
+							throw e;
+						}
+					}
+					logger.info("Node " + nPrime + " has failed, routing through " + detour);
+					nPrime = detour;
+				}
+			}
+			if (RangeUtils.valueIsInRangeExclExcl(nPrimeSuccessor.id, previous.id, nPrime.id, hashRangeSize)) {
+				// The finger refers to an identifier that the node has moved away from, get its current identifier. No
+				// finger lies between the node and its successor, so the node answers with itself.
+				nPrime = nPrime.address.equals(localNode.address) ? localNode :
+					transport.closestPrecedingFinger(nPrime.address, nPrimeSuccessor.id);
+			}
 		}
 
 		logger.info("Found predecessor " + nPrime);
@@ -186,36 +616,470 @@ public class ChordNode implements ChordGrpcServerHandler {
 	}
 
 	/**
-	 * Verifies this node's successor and notifies the successor of this node. This method should be called
-	 * periodically.
+	 * Find the closest finger preceding an identifier, asking the node itself unless it is this node.
+	 *
+	 * @param node the node whose fingers to use.
+	 * @param id   the identifier.
+	 *
+	 * @return the finger of the node that most closely precedes the identifier, or the node itself.
 	 */
-	private void stabilize() { // TODO: call this periodically
-		// Get successors predecessor
-		NodeInfo x = ChordGrpcClient.getPredecessor(fingerTable[0].address, port);
-		if (RangeUtils.valueIsInRangeExclExcl(x.id, localNode.id, fingerTable[0].id, hashRangeSize)) {
-			fingerTable[0] = x;
+	private NodeInfo closestPrecedingFingerOf(NodeInfo node, BigInteger id) {
+		return node.address.equals(localNode.address) ? closestPrecedingFinger(id) :
+			transport.closestPrecedingFinger(node.address, id);
+	}
+
+	/**
+	 * Perform one round of maintenance of the routing state and the value caches. This method should be called
+	 * periodically. A step that fails does not keep the later steps from running.
+	 *
+	 * @return true if all steps succeeded.
+	 */
+	boolean maintain() {
+		boolean succeeded = maintenanceStep("Stabilize", this::stabilize);
+		succeeded &= maintenanceStep("Predecessor check", this::checkPredecessor);
+		succeeded &= maintenanceStep("Fixing fingers", this::fixFingers);
+		succeeded &= maintenanceStep("Load update", this::updateLoad);
+		succeeded &= maintenanceStep("Rebalancing", this::rebalance);
+		succeeded &= maintenanceStep("Pushing popular values", this::pushPopularValues);
+		return succeeded;
+	}
+
+	/**
+	 * Run one step of the maintenance.
+	 *
+	 * @param name the name of the step, used in the log.
+	 * @param step the step.
+	 *
+	 * @return true if the step succeeded.
+	 */
+	private boolean maintenanceStep(String name, Runnable step) {
+		try {
+			step.run();
+			return true;
+		} catch (RuntimeException e) {
+			logger.warn(name + " failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Verifies this node's successor and notifies the successor of this node. The successor's finger table is used to
+	 * opportunistically improve this node's fingers. A successor that has failed is replaced by the first of its
+	 * successor and this node's fingers that responds. This method should be called periodically.
+	 */
+	void stabilize() {
+		NodeInfo successor = fingerTable[0];
+		// Only the fingers that changed since the last stabilize are needed, unless the successor is a different node
+		long fingerVersion = successor.address.equals(stabilizedSuccessor) ? successorFingerVersion : 0;
+		// Notify successor that I think I'm their predecessor, and get the successor's predecessor in return
+		StabilizeResult result;
+		try {
+			result = transport.stabilize(successor.address, localNode, fingerVersion);
+		} catch (StatusRuntimeException e) {
+			if (successor.address.equals(localNode.address) || isAlive(successor.address)) {
+				throw e;
+			}
+			replaceFailedSuccessor(successor);
+			return;
+		}
+		stabilizedSuccessor = successor.address;
+		nextSuccessor = result.fingers[0];
+		successorFingerVersion = result.fingerVersion;
+		successorLoad = result.load;
+		NodeInfo x = result.predecessor;
+		// The successor may still know this node by an identifier that it has moved away from
+		if (x != null && !x.address.equals(localNode.address) &&
+			RangeUtils.valueIsInRangeExclExcl(x.id, localNode.id, fingerTable[0].id, hashRangeSize)) {
+			setFinger(0, x);
+			logger.info("My successor is now " + x);
+		}
+
+		for (NodeInfo finger : result.fingers) {
+			considerFinger(finger);
+		}
+	}
+
+	/**
+	 * Replace a successor that has failed. The successor's successor is tried first, then this node's fingers in
+	 * order, and the first one that responds replaces every finger that refers to the failed node. Nodes between the
+	 * failed node and the replacement are found by the following stabilize rounds.
+	 *
+	 * @param failed the successor that has failed.
+	 */
+	private void replaceFailedSuccessor(NodeInfo failed) {
+		Map<String, NodeInfo> candidates = new LinkedHashMap<>();
+		NodeInfo currentNextSuccessor = nextSuccessor;
+		if (currentNextSuccessor != null) {
+			candidates.put(currentNextSuccessor.address, currentNextSuccessor);
+		}
+		for (NodeInfo finger : getFingerTable()) {
+			candidates.putIfAbsent(finger.address, finger);
 		}
+		candidates.remove(failed.address);
+		candidates.remove(localNode.address);
 
-		// Notify successor that I think I'm their predecessor
-		ChordGrpcClient.notify(fingerTable[0].address, port, localNode);
+		for (NodeInfo candidate : candidates.values()) {
+			if (isAlive(candidate.address)) {
+				for (int i = 0; i < fingerTableSize; i++) {
+					if (fingerTable[i].address.equals(failed.address)) {
+						setFinger(i, candidate);
+					}
+				}
+				nextSuccessor = null;
+				logger.info("Successor " + failed + " has failed, my successor is now " + candidate);
+				return;
+			}
+		}
+		throw Status.UNAVAILABLE.withDescription("Successor " + failed + " has failed and no other known node " +
+			"responds").asRuntimeException();
+	}
+
+	/**
+	 * Replace any fingers for which a known node is a closer successor of the finger's start.
+	 *
+	 * @param candidate a node known to be in the network.
+	 */
+	private void considerFinger(NodeInfo candidate) {
+		if (candidate.address.equals(localNode.address)) {
+			return;
+		}
+		// A node in [start, finger) means that the finger is not the successor of start. The candidate is only after
+		// the start of finger i if its distance from this node is at least 2^i.
+		BigInteger distance = candidate.id.subtract(localNode.id).mod(hashRangeSize);
+		for (int i = Math.min(distance.bitLength(), fingerTableSize) - 1; i >= 0; i--) {
+			BigInteger fingerDistance = fingerTable[i].id.subtract(localNode.id).mod(hashRangeSize);
+			if (fingerDistance.signum() != 0 && fingerDistance.compareTo(distance) <= 0) {
+				// Finger distances grow with the index, so the lower fingers are at least as close
+				break;
+			}
+			setFinger(i, candidate);
+			logger.info("Finger " + i + " is now " + candidate);
+		}
 	}
 
 	/**
 	 * Refreshes finger table entries. This method should be called periodically.
 	 */
-	private void fixFingers() { // TODO: call this periodically
+	void fixFingers() {
 		nextFingerToFix = (nextFingerToFix + 1) % fingerTableSize;
-		fingerTable[nextFingerToFix] = ChordGrpcClient.findSuccessor(localNode.address, port,
-			localNode.id.add(BigInteger.ONE.shiftLeft(nextFingerToFix)));
+		setFinger(nextFingerToFix, findSuccessor(fingerStart(nextFingerToFix)));
+	}
+
+	/**
+	 * Set a finger, and record a new finger table version if the finger changed.
+	 *
+	 * @param index the index of the finger.
+	 * @param node  the node to set the finger to.
+	 */
+	private void setFinger(int index, NodeInfo node) {
+		synchronized (fingerTable) {
+			NodeInfo current = fingerTable[index];
+			fingerTable[index] = node;
+			if (current == null || !current.address.equals(node.address) || !current.id.equals(node.id)) {
+				fingerVersions[index] = ++fingerTableVersion;
+			}
+		}
+	}
+
+	/**
+	 * Push copies of the values that have been read often since the last call to the predecessor. Lookups of a value
+	 * pass through the owner's predecessor, so popular values can be answered there instead of by the owner.
+	 */
+	private void pushPopularValues() {
+		Map<BigInteger, Integer> counts = readCounts;
+		readCounts = new ConcurrentHashMap<>();
+		NodeInfo currentPredecessor = predecessor;
+		if (currentPredecessor == null || currentPredecessor.address.equals(localNode.address)) {
+			return;
+		}
+		for (Map.Entry<BigInteger, Integer> count : counts.entrySet()) {
+			if (count.getValue() >= popularKeyThreshold) {
+				pushCopies(count.getKey(), Collections.singletonList(currentPredecessor));
+			}
+		}
+	}
+
+	/**
+	 * Push copies of an owned value to the caches of other nodes, and remember the nodes so that the copies can be
+	 * invalidated when the value changes. The value is read and pushed under its lock, so a copy is never older than
+	 * the last completed store.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param nodes the nodes to push copies to.
+	 */
+	private void pushCopies(BigInteger id, List<NodeInfo> nodes) {
+		synchronized (lockFor(id)) {
+			byte[] value = store.get(id);
+			if (value == null) { // Removed, or handed over to the successor
+				return;
+			}
+			Set<String> holders = cacheHolders.computeIfAbsent(id, key -> ConcurrentHashMap.newKeySet());
+			for (NodeInfo node : nodes) {
+				if (node.address.equals(localNode.address)) {
+					continue;
+				}
+				holders.add(node.address);
+				try {
+					transport.cacheValue(node.address, id, value);
+				} catch (RuntimeException e) {
+					logger.info("Could not cache value at " + node + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidate the copies of an owned value in the caches of other nodes, concurrently. Must be called with the
+	 * value's lock held. A copy at a node that cannot be reached is left to expire.
+	 *
+	 * @param id the identifier of the value.
+	 */
+	private void invalidateCopies(BigInteger id) {
+		Set<String> holders = cacheHolders.remove(id);
+		if (holders == null) {
+			return;
+		}
+		List<CompletableFuture<Void>> invalidations = new ArrayList<>();
+		for (String address : holders) {
+			invalidations.add(CompletableFuture.runAsync(() -> {
+				try {
+					transport.invalidateValue(address, id);
+				} catch (RuntimeException e) {
+					logger.warn("Could not invalidate cached value at " + address + ": " + e.getMessage());
+				}
+			}, lookupExecutor));
+		}
+		CompletableFuture.allOf(invalidations.toArray(new CompletableFuture<?>[0])).join();
+	}
+
+	/**
+	 * Get the lock that orders the stores and cache pushes of a value.
+	 *
+	 * @param id the identifier of the value.
+	 *
+	 * @return the lock.
+	 */
+	private Object lockFor(BigInteger id) {
+		return keyLocks[Math.floorMod(id.hashCode(), keyLockStripes)];
+	}
+
+	private static Object[] createKeyLocks() {
+		Object[] locks = new Object[keyLockStripes];
+		for (int i = 0; i < keyLockStripes; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+
+	/**
+	 * Measure the load of this node since the last maintenance round, which is compared with the successor's load.
+	 */
+	private void updateLoad() {
+		long reads = storeReads.get();
+		load = store.size() + reads - lastStoreReads;
+		lastStoreReads = reads;
+	}
+
+	/**
+	 * Hand over the end of this node's range to the successor if this node's load is more than the imbalance bound
+	 * times the successor's load. Keys are handed over from the end of the range until half of the difference has
+	 * moved, where each key weighs one plus its reads since the last maintenance round. A key is never moved if that
+	 * would leave the successor with more load than this node had, so two nodes cannot keep handing a hot key back and
+	 * forth.
+	 */
+	private void rebalance() {
+		double bound = loadImbalanceBound;
+		long currentLoad = load;
+		long currentSuccessorLoad = successorLoad;
+		NodeInfo currentPredecessor = predecessor;
+		NodeInfo successor = fingerTable[0];
+		if (bound == 0 || currentSuccessorLoad < 0 || currentLoad < minimumMigrationLoad ||
+			currentLoad <= bound * Math.max(currentSuccessorLoad, 1) || currentPredecessor == null ||
+			successor.address.equals(localNode.address) || migrating.get()) {
+			return;
+		}
+
+		Map<BigInteger, Integer> counts = readCounts;
+		long difference = currentLoad - currentSuccessorLoad;
+		List<BigInteger> ids = new ArrayList<>();
+		long movedLoad = 0;
+		for (BigInteger id : storedIdsDescending(currentPredecessor.id, localNode.id)) {
+			long weight = 1 + counts.getOrDefault(id, 0);
+			if (2 * movedLoad >= difference || movedLoad + weight >= difference) {
+				break;
+			}
+			ids.add(id);
+			movedLoad += weight;
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
+		BigInteger newId = ids.get(ids.size() - 1).subtract(BigInteger.ONE).mod(hashRangeSize);
+		if (!RangeUtils.valueIsInRangeExclExcl(newId, currentPredecessor.id, localNode.id, hashRangeSize)) {
+			return;
+		}
+
+		migrating.set(true);
+		lookupExecutor.execute(() -> {
+			try {
+				migrate(newId, ids, successor);
+			} catch (RuntimeException e) {
+				logger.warn("Could not hand over keys to " + successor + ": " + e.getMessage());
+			} finally {
+				migrating.set(false);
+			}
+		});
+	}
+
+	/**
+	 * Get the identifiers of the stored values in (from, to], starting from the end of the range.
+	 *
+	 * @param from the start of the range (exclusive).
+	 * @param to   the end of the range (inclusive).
+	 *
+	 * @return the identifiers in descending ring order.
+	 */
+	private List<BigInteger> storedIdsDescending(BigInteger from, BigInteger to) {
+		List<BigInteger> ids = new ArrayList<>();
+		if (from.compareTo(to) < 0) {
+			ids.addAll(store.subMap(from, false, to, true).descendingKeySet());
+		} else { // The range wraps around zero
+			ids.addAll(store.headMap(to, true).descendingKeySet());
+			ids.addAll(store.tailMap(from, false).descendingKeySet());
+		}
+		return ids;
 	}
 
 	/**
-	 * Checks if the predecessor has failed. This method should be called periodically.
+	 * Hand over values to the successor and move this node's identifier to just before them. The values are copied
+	 * before the identifier moves, so they can be found at either the old or the new owner throughout. The new
+	 * identifier is then announced like in a join, since fingers that still refer to the old identifier would make
+	 * lookups of the handed over range stop at this node.
+	 *
+	 * @param newId     the new identifier of this node.
+	 * @param ids       the identifiers of the values to hand over, which are all in (newId, n].
+	 * @param successor the successor.
 	 */
-	private void checkPredecessor() { // TODO: call this periodically
-		int healthCheckTimeout = 150;
-		if (ChordGrpcClient.healthCheck(predecessor.address, port, healthCheckTimeout)) {
+	private void migrate(BigInteger newId, List<BigInteger> ids, NodeInfo successor) {
+		Map<BigInteger, byte[]> moved = copyValues(ids, successor);
+
+		NodeInfo oldNode = localNode;
+		localNode = new NodeInfo(newId, oldNode.address);
+		cutOver(newId, oldNode.id, moved, successor);
+		logger.info("Moved identifier from 0x" + oldNode.id.toString(16) + " to 0x" + newId.toString(16) +
+			" and handed over " + moved.size() + " values to " + successor);
+
+		transport.notify(successor.address, localNode);
+		updateOthers(oldNode.id);
+	}
+
+	/**
+	 * Copy stored values to the node that is about to own them.
+	 *
+	 * @param ids  the identifiers of the values.
+	 * @param node the new owner of the values.
+	 *
+	 * @return the values that were copied.
+	 */
+	private Map<BigInteger, byte[]> copyValues(List<BigInteger> ids, NodeInfo node) {
+		Map<BigInteger, byte[]> copied = new HashMap<>();
+		for (BigInteger id : ids) {
+			byte[] value = store.get(id);
+			if (value != null) {
+				transport.storeValue(node.address, id, value);
+				copied.put(id, value);
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Remove the stored values in a range that another node owns now. Values that were stored after they were
+	 * copied, or that were not copied at all, are sent to the new owner first. Requests for the range must already be
+	 * passed on to the new owner, so no values can be stored in it after this.
+	 *
+	 * @param from   the start of the range (exclusive).
+	 * @param to     the end of the range (inclusive).
+	 * @param copied the values that were copied to the new owner.
+	 * @param node   the new owner of the range.
+	 */
+	private void cutOver(BigInteger from, BigInteger to, Map<BigInteger, byte[]> copied, NodeInfo node) {
+		for (BigInteger id : storedIdsDescending(from, to)) {
+			synchronized (lockFor(id)) {
+				byte[] value = store.remove(id);
+				if (value != null && value != copied.get(id)) { // Stored while the values were being copied
+					transport.storeValue(node.address, id, value);
+				}
+				// The new owner does not know which nodes have copies
+				invalidateCopies(id);
+			}
+		}
+	}
+
+	/**
+	 * Hand over the values in a joining node's range to it and take it as the predecessor. The values are copied
+	 * before the predecessor changes, so they can be found at either node throughout. Requests for the range that
+	 * still reach this node as the owner, until the new node has finished joining, are passed on to the new node.
+	 *
+	 * @param node the joining node, which should be between the predecessor and this node.
+	 */
+	@Override
+	public synchronized void handOver(NodeInfo node) {
+		logger.info("Got handOver request for Node " + node);
+		NodeInfo currentPredecessor = predecessor;
+		BigInteger from = currentPredecessor == null || currentPredecessor.address.equals(localNode.address) ?
+			localNode.id : currentPredecessor.id;
+		if (!from.equals(localNode.id) &&
+			!RangeUtils.valueIsInRangeExclExcl(node.id, from, localNode.id, hashRangeSize)) {
+			// The joining node has an outdated view of the ring, stabilize will find its actual successor
+			logger.info("Node " + node + " is not between predecessor " + currentPredecessor + " and this node");
+			return;
+		}
+
+		Map<BigInteger, byte[]> copied = copyValues(storedIdsDescending(from, node.id), node);
+		joinedRange = new AbstractMap.SimpleImmutableEntry<>(from, node);
+		predecessor = node;
+		cutOver(from, node.id, copied, node);
+		logger.info("Handed over " + copied.size() + " values to " + node);
+	}
+
+	/**
+	 * Find the node that an identifier has been handed over to, for requests from nodes that still know this node by
+	 * an identifier that it has moved away from, or that do not know yet about a node that has joined before it.
+	 *
+	 * @param id the identifier.
+	 *
+	 * @return the successor or the joined predecessor if it owns the identifier, otherwise null.
+	 */
+	private NodeInfo handedOverTo(BigInteger id) {
+		NodeInfo successor = fingerTable[0];
+		if (!successor.address.equals(localNode.address) &&
+			RangeUtils.valueIsInRangeExclIncl(id, localNode.id, successor.id, hashRangeSize)) {
+			return successor;
+		}
+		// Only while the joined node is the predecessor, since it may fail or move its identifier later
+		Map.Entry<BigInteger, NodeInfo> range = joinedRange;
+		NodeInfo currentPredecessor = predecessor;
+		if (range != null && currentPredecessor != null && range.getValue().address.equals(currentPredecessor.address) &&
+			range.getValue().id.equals(currentPredecessor.id) &&
+			RangeUtils.valueIsInRangeExclIncl(id, range.getKey(), currentPredecessor.id, hashRangeSize)) {
+			return currentPredecessor;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if the predecessor has failed, and forgets it if so, so that the next node that notifies this node
+	 * becomes its predecessor. This method should be called periodically.
+	 */
+	private void checkPredecessor() {
+		NodeInfo currentPredecessor = predecessor;
+		if (currentPredecessor == null || currentPredecessor.address.equals(localNode.address)) {
+			return;
+		}
+		if (!isAlive(currentPredecessor.address) && predecessor == currentPredecessor) {
 			// Predecessor has failed.
+			logger.info("Predecessor " + currentPredecessor + " has failed");
 			predecessor = null;
 		}
 	}
@@ -243,7 +1107,8 @@ public class ChordNode implements ChordGrpcServerHandler {
 		logger.info("Got findSuccessor request for identifier 0x" + id.toString(16));
 
 		NodeInfo idPredecessor = findPredecessor(id);
-		return ChordGrpcClient.getSuccessor(idPredecessor.address, port);
+		return idPredecessor.address.equals(localNode.address) ? fingerTable[0] :
+			transport.getSuccessor(idPredecessor.address);
 	}
 
 	/**
@@ -294,11 +1159,13 @@ public class ChordNode implements ChordGrpcServerHandler {
 		    localNode, but this is wrong and can cause a node to add itself to its own finger table. */
 		if (RangeUtils.valueIsInRangeExclExcl(node.id, localNode.id, fingerTable[index].id, hashRangeSize) ||
 			localNode.address.equals(fingerTable[index].address)) {
-			fingerTable[index] = node;
-			logger.info("Finger " + index + " is now " + fingerTable[index]);
+			setFinger(index, node);
+			logger.info("Finger " + index + " is now " + node);
 
 			// pseudocode: predecessor.updateFingerTable(node, index)
-			ChordGrpcClient.updateFingerTable(predecessor.address, port, node, index);
+			if (predecessor != null) {
+				transport.updateFingerTable(predecessor.address, node, index);
+			}
 		} else {
 			logger.info("Did not update finger table");
 		}
@@ -315,8 +1182,9 @@ public class ChordNode implements ChordGrpcServerHandler {
 	public NodeInfo closestPrecedingFinger(BigInteger id) {
 		logger.info("Got closestPrecedingFinger request for identifier 0x" + id.toString(16));
 		for (int i = fingerTableSize - 1; i >= 0; i--) {
-			if (fingerTable[i] != null && RangeUtils.valueIsInRangeExclExcl(fingerTable[i].id, localNode.id, id,
-				hashRangeSize)) {
+			// A finger may refer to this node by an identifier that it has moved away from
+			if (fingerTable[i] != null && !fingerTable[i].address.equals(localNode.address) &&
+				RangeUtils.valueIsInRangeExclExcl(fingerTable[i].id, localNode.id, id, hashRangeSize)) {
 				return fingerTable[i];
 			}
 		}
@@ -331,13 +1199,501 @@ public class ChordNode implements ChordGrpcServerHandler {
 	@Override
 	public void notify(NodeInfo potentialPredecessor) {
 		logger.info("Got notify request for Node " + potentialPredecessor.toString());
-		if (predecessor == null || RangeUtils.valueIsInRangeExclExcl(
-			potentialPredecessor.id, predecessor.id, localNode.id, hashRangeSize)) {
+		NodeInfo currentPredecessor = predecessor;
+		// The predecessor may have moved its identifier, in any direction
+		if (currentPredecessor == null || potentialPredecessor.address.equals(currentPredecessor.address) ||
+			RangeUtils.valueIsInRangeExclExcl(potentialPredecessor.id, currentPredecessor.id, localNode.id,
+				hashRangeSize)) {
 			predecessor = potentialPredecessor;
 			logger.info("My predecessor is now " + potentialPredecessor);
 		}
 	}
 
+	/**
+	 * Handler for incoming stabilize requests. The request is handled as a notify request, and the result contains
+	 * the successor and the fingers that changed after a given finger table version. A version that this node has not
+	 * reached yet was seen before a restart, so the full finger table is returned instead.
+	 *
+	 * @param potentialPredecessor a potential predecessor of this node.
+	 * @param fingerVersion        the finger table version that the caller has seen, or 0 for the full table.
+	 *
+	 * @return the predecessor, changed fingers, finger table version and load of this node after the notification.
+	 */
+	@Override
+	public StabilizeResult stabilize(NodeInfo potentialPredecessor, long fingerVersion) {
+		notify(potentialPredecessor);
+		Map.Entry<BigInteger, NodeInfo> range = joinedRange;
+		if (range != null && range.getValue().address.equals(potentialPredecessor.address)) {
+			// The joined node has finished joining and updated the nodes before it, so requests for its range no
+			// longer reach this node. It may even hand part of the range back to this node from now on.
+			joinedRange = null;
+		}
+		synchronized (fingerTable) {
+			long since = fingerVersion <= fingerTableVersion ? fingerVersion : 0;
+			// Each node is sent once, even if several fingers refer to it
+			Map<String, NodeInfo> fingers = new LinkedHashMap<>();
+			fingers.put(fingerTable[0].address, fingerTable[0]);
+			for (int i = 1; i < fingerTableSize; i++) {
+				if (fingerVersions[i] > since) {
+					fingers.putIfAbsent(fingerTable[i].address, fingerTable[i]);
+				}
+			}
+			return new StabilizeResult(predecessor, fingers.values().toArray(new NodeInfo[0]), fingerTableVersion,
+				load);
+		}
+	}
+
+	/**
+	 * Get the finger table of a Chord node.
+	 *
+	 * @return a copy of the finger table, where the first entry is the successor.
+	 */
+	@Override
+	public NodeInfo[] getFingerTable() {
+		return Arrays.copyOf(fingerTable, fingerTableSize);
+	}
+
+	/**
+	 * Get the load of a Chord node.
+	 *
+	 * @return the number of stored keys plus the number of store reads in the last maintenance round.
+	 */
+	@Override
+	public long getLoad() {
+		return load;
+	}
+
+	/**
+	 * Store a value in the network. Once this method returns, every get of the key returns the new value, except
+	 * from a cached copy at a node that could not be reached to invalidate it, until the copy expires.
+	 *
+	 * @param key   the key of the value.
+	 * @param value the value.
+	 */
+	@Override
+	public void put(String key, byte[] value) {
+		logger.info("Got put request for key '" + key + "'");
+		putValue(calculateHash(key), value);
+	}
+
+	/**
+	 * Get a value from the network. The value may come from a cached copy, which is invalidated before a put of the
+	 * key returns, so a get that is concurrent with a put returns either the old or the new value.
+	 *
+	 * @param key the key of the value.
+	 *
+	 * @return the value, or null if there is no value for the key.
+	 */
+	@Override
+	public byte[] get(String key) {
+		logger.info("Got get request for key '" + key + "'");
+		return getValue(calculateHash(key));
+	}
+
+	/**
+	 * Store a value at the node that owns its identifier.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param value the value.
+	 */
+	void putValue(BigInteger id, byte[] value) {
+		NodeInfo owner = findSuccessor(id);
+		if (owner.address.equals(localNode.address)) {
+			storeValue(id, value);
+		} else {
+			transport.storeValue(owner.address, id, value);
+		}
+	}
+
+	/**
+	 * Get the value of an identifier. The lookup is iterative, and any node on the way that has a cached copy of the
+	 * value answers it. If the owner answers, it pushes copies to the other nodes that the lookup passed through. A
+	 * node on the way that has failed is routed around like in {@link #findPredecessor(BigInteger)}.
+	 *
+	 * @param id the identifier of the value.
+	 *
+	 * @return the value, or null if there is no value for the identifier.
+	 */
+	byte[] getValue(BigInteger id) {
+		List<NodeInfo> path = new ArrayList<>(); // Nodes that were passed through, excluding this node
+		NodeInfo current = localNode;
+		LookupValueResult result = lookupValue(id, false, path);
+		while (result.nextNode != null) {
+			if (!current.address.equals(localNode.address)) {
+				path.add(current);
+			}
+			NodeInfo previous = current;
+			current = result.nextNode;
+			boolean owner = result.nextIsOwner;
+			result = null;
+			while (result == null) {
+				try {
+					result = current.address.equals(localNode.address) ? lookupValue(id, owner, path) :
+						transport.lookupValue(current.address, id, owner, path);
+				} catch (StatusRuntimeException e) {
+					if (e.getStatus().getCode() != Status.Code.UNAVAILABLE) {
+						throw e;
+					}
+					// The node has failed and is not repaired yet, route around it through a closer finger
+					NodeInfo detour = closestPrecedingFingerOf(previous, current.id);
+					if (detour.address.equals(previous.address)) {
+						// No finger precedes the failed one, but the successor may still be on the way to it
+						detour = previous.address.equals(localNode.address) ? fingerTable[0] :
+							transport.getSuccessor(previous.address);
+						if (!RangeUtils.valueIsInRangeExclExcl(detour.id, previous.id, current.id, hashRangeSize)) {
+							throw e;
+						}
+					}
+					logger.info("Node " + current + " has failed, routing through " + detour);
+					current = detour;
+					owner = false;
+				}
+			}
+		}
+		return result.value;
+	}
+
+	/**
+	 * Store a value that this node owns.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param value the value.
+	 */
+	@Override
+	public void storeValue(BigInteger id, byte[] value) {
+		logger.info("Got storeValue request for identifier 0x" + id.toString(16));
+		synchronized (lockFor(id)) {
+			// Checked under the lock, so that a value cannot be stored after its range has been cut over
+			NodeInfo owner = handedOverTo(id);
+			if (owner != null) {
+				transport.storeValue(owner.address, id, value);
+				return;
+			}
+			store.put(id, value);
+			cache.remove(id);
+			invalidateCopies(id);
+		}
+	}
+
+	/**
+	 * Perform one step of a value lookup.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param owner whether this node is known to be the owner of the identifier.
+	 * @param path  the nodes that the lookup has passed through, which the owner pushes copies of the value to.
+	 *
+	 * @return the value if this node owns it or has a cached copy of it, otherwise the next node to ask.
+	 */
+	@Override
+	public LookupValueResult lookupValue(BigInteger id, boolean owner, List<NodeInfo> path) {
+		logger.info("Got lookupValue request for identifier 0x" + id.toString(16));
+		NodeInfo currentPredecessor = predecessor;
+		NodeInfo successor = fingerTable[0];
+		NodeInfo newOwner = owner ? handedOverTo(id) : null;
+		if (newOwner != null) {
+			return new LookupValueResult(null, newOwner, true);
+		}
+		if (owner || successor.address.equals(localNode.address) || (currentPredecessor != null &&
+			RangeUtils.valueIsInRangeExclIncl(id, currentPredecessor.id, localNode.id, hashRangeSize))) {
+			storeReads.incrementAndGet();
+			readCounts.merge(id, 1, Integer::sum);
+			byte[] value = store.get(id);
+			if (value != null && !path.isEmpty()) {
+				lookupExecutor.execute(() -> pushCopies(id, path));
+			}
+			return new LookupValueResult(value, null, false);
+		}
+
+		byte[] cached = cache.get(id);
+		if (cached != null) {
+			cacheReads.incrementAndGet();
+			return new LookupValueResult(cached, null, false);
+		}
+
+		if (RangeUtils.valueIsInRangeExclIncl(id, localNode.id, successor.id, hashRangeSize)) {
+			return new LookupValueResult(null, successor, true);
+		}
+		NodeInfo next = closestPrecedingFinger(id);
+		return new LookupValueResult(null, next.address.equals(localNode.address) ? successor : next, false);
+	}
+
+	/**
+	 * Store a copy of a value owned by another node in the cache.
+	 *
+	 * @param id    the identifier of the value.
+	 * @param value the value.
+	 */
+	@Override
+	public void cacheValue(BigInteger id, byte[] value) {
+		logger.info("Got cacheValue request for identifier 0x" + id.toString(16));
+		if (!store.containsKey(id)) {
+			cache.put(id, value);
+		}
+	}
+
+	/**
+	 * Remove a cached copy of a value owned by another node, after the owner has stored a new value.
+	 *
+	 * @param id the identifier of the value.
+	 */
+	@Override
+	public void invalidateValue(BigInteger id) {
+		logger.info("Got invalidateValue request for identifier 0x" + id.toString(16));
+		cache.remove(id);
+	}
+
+	/**
+	 * Aggregate statistics over all nodes in the network.
+	 *
+	 * @param timeout the time in milliseconds to wait for the statistics.
+	 *
+	 * @return the statistics, which are incomplete if some nodes did not answer in time.
+	 */
+	public AggregateResult aggregateRing(long timeout) {
+		return aggregate(null, null, timeout);
+	}
+
+	/**
+	 * Aggregate statistics over the nodes in an identifier interval, which this node should be the first of. The
+	 * interval is split between the distinct fingers in it, where each finger covers the nodes up to the next one.
+	 * Since the fingers halve the distance to the end of the interval, the whole ring is covered in O(log N) levels.
+	 * That only holds when the finger table spans the ring. With fewer fingers than hash bits, the fingers may all be
+	 * the successor and the tree degrades towards a chain along the ring. Each level keeps a margin of the timeout for
+	 * itself, so the depth is capped at timeout / {@value #aggregateTimeoutMargin} levels, and the nodes beyond that
+	 * are reported as incomplete.
+	 * A node that is not the first node of the interval, because it has moved its identifier or another node has
+	 * joined in front of it, passes the request on to the node that is.
+	 *
+	 * @param start   the start of the interval (inclusive), or null for the whole ring from this node.
+	 * @param limit   the end of the interval (exclusive), or null for the whole ring from this node.
+	 * @param timeout the time in milliseconds to wait for the statistics.
+	 *
+	 * @return the statistics, which are incomplete if some nodes did not answer in time.
+	 */
+	@Override
+	public AggregateResult aggregate(BigInteger start, BigInteger limit, long timeout) {
+		logger.info("Got aggregate request for " + (limit == null ? "the whole ring" :
+			"[0x" + start.toString(16) + ", 0x" + limit.toString(16) + ")"));
+		long deadline = System.currentTimeMillis() + timeout;
+		NodeInfo currentPredecessor = predecessor;
+		if (start != null && (!RangeUtils.valueIsInRangeInclExcl(localNode.id, start, limit, hashRangeSize) ||
+			currentPredecessor != null && !currentPredecessor.address.equals(localNode.address) &&
+				RangeUtils.valueIsInRangeInclExcl(currentPredecessor.id, start, localNode.id, hashRangeSize))) {
+			return redirectAggregate(start, limit, timeout);
+		}
+		BigInteger end = limit == null ? localNode.id : limit;
+		BigInteger rangeSize = end.subtract(localNode.id).mod(hashRangeSize);
+		if (rangeSize.signum() == 0) {
+			rangeSize = hashRangeSize;
+		}
+
+		List<NodeInfo> children = new ArrayList<>();
+		BigInteger previousDistance = BigInteger.ZERO;
+		for (NodeInfo finger : getFingerTable()) {
+			BigInteger distance = finger.id.subtract(localNode.id).mod(hashRangeSize);
+			if (distance.compareTo(previousDistance) > 0 && distance.compareTo(rangeSize) < 0) {
+				children.add(finger);
+				previousDistance = distance;
+			}
+		}
+
+		AggregateResult result = AggregateResult.forNode(store.size(), GrpcTypeHelper.protocolVersion);
+		long childTimeout = timeout - aggregateTimeoutMargin;
+		if (childTimeout <= 0) {
+			return children.isEmpty() ? result : result.incomplete();
+		}
+
+		List<CompletableFuture<AggregateResult>> childResults = new ArrayList<>();
+		for (int i = 0; i < children.size(); i++) {
+			NodeInfo child = children.get(i);
+			BigInteger childLimit = i + 1 < children.size() ? children.get(i + 1).id : end;
+			childResults.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return transport.aggregate(child.address, child.id, childLimit, childTimeout);
+				} catch (StatusRuntimeException e) {
+					if (e.getStatus().getCode() != Status.Code.UNAVAILABLE) {
+						throw e;
+					}
+					// The finger has failed and is not repaired yet, the nodes after it in its interval answer instead
+					return redirectAggregate(child.id.add(BigInteger.ONE).mod(hashRangeSize), childLimit,
+						childTimeout);
+				}
+			}, lookupExecutor));
+		}
+		for (CompletableFuture<AggregateResult> childResult : childResults) {
+			try {
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+				result = result.combine(childResult.get(remaining, TimeUnit.MILLISECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				result = result.incomplete();
+			} catch (ExecutionException | TimeoutException e) {
+				result = result.incomplete();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Pass an aggregate request on to the first node of the interval, which is found by routing.
+	 *
+	 * @param start   the start of the interval (inclusive).
+	 * @param limit   the end of the interval (exclusive).
+	 * @param timeout the time in milliseconds to wait for the statistics.
+	 *
+	 * @return the statistics, which are empty if there are no nodes in the interval.
+	 */
+	private AggregateResult redirectAggregate(BigInteger start, BigInteger limit, long timeout) {
+		long childTimeout = timeout - aggregateTimeoutMargin;
+		if (childTimeout <= 0) {
+			return AggregateResult.empty().incomplete();
+		}
+		try {
+			NodeInfo first = findSuccessor(start);
+			if (!RangeUtils.valueIsInRangeInclExcl(first.id, start, limit, hashRangeSize)) {
+				return AggregateResult.empty();
+			}
+			if (first.address.equals(localNode.address)) {
+				// The routing state disagrees with itself until stabilize has caught up
+				return AggregateResult.empty().incomplete();
+			}
+			logger.info("Passing aggregate request on to " + first);
+			return transport.aggregate(first.address, start, limit, childTimeout);
+		} catch (StatusRuntimeException e) {
+			return AggregateResult.empty().incomplete();
+		}
+	}
+
+	/**
+	 * Scan the values in an identifier range across the network, in ring order. The owner of the start of the range
+	 * is found by routing, and the following owners by walking successors. The sub-range of each owner is fetched in
+	 * the background while the walk continues, with up to a fixed number of fetches in flight, and the results are
+	 * passed on in ring order as they complete. An owner that has failed and is not repaired yet is routed around, and
+	 * its sub-range is fetched from the node after it, which takes the sub-range over once stabilize has caught up.
+	 *
+	 * @param start    the start of the range (exclusive).
+	 * @param end      the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit    the maximum number of values, 0 for no limit.
+	 * @param consumer the consumer of the identifiers and values, in ring order from start.
+	 *
+	 * @return the identifier to resume the scan from, or null if the whole range was scanned.
+	 */
+	@Override
+	public BigInteger scan(BigInteger start, BigInteger end, int limit, BiConsumer<BigInteger, byte[]> consumer) {
+		logger.info("Got scan request for (0x" + start.toString(16) + ", 0x" + end.toString(16) + "]");
+		Deque<CompletableFuture<List<Map.Entry<BigInteger, byte[]>>>> fetches = new ArrayDeque<>();
+		BigInteger subRangeStart = start;
+		NodeInfo owner = findSuccessor(start.add(BigInteger.ONE).mod(hashRangeSize));
+		boolean walked = false; // Whether the owner of the end of the range has been reached
+		int delivered = 0;
+		while (!walked || !fetches.isEmpty()) {
+			if (!walked && fetches.size() < scanConcurrency) {
+				// The owner covers (subRangeStart, owner]
+				walked = rangeSize(subRangeStart, end).compareTo(rangeSize(subRangeStart, owner.id)) <= 0;
+				fetches.add(fetchValues(owner, subRangeStart, walked ? end : owner.id, limit));
+				if (!walked) {
+					subRangeStart = owner.id;
+					owner = successorOf(owner);
+				}
+				continue;
+			}
+			// Every fetch asks for the whole limit, so a truncated sub-range always reaches the limit here
+			for (Map.Entry<BigInteger, byte[]> entry : fetches.remove().join()) {
+				consumer.accept(entry.getKey(), entry.getValue());
+				delivered++;
+				if (delivered == limit) {
+					// Nothing is left to resume from if the limit was reached at the end of the range
+					return entry.getKey().equals(end) ? null : entry.getKey();
+				}
+			}
+		}
+		return null;
+	}
+
+	private CompletableFuture<List<Map.Entry<BigInteger, byte[]>>> fetchValues(NodeInfo node, BigInteger start,
+		BigInteger end, int limit) {
+		return CompletableFuture.supplyAsync(() -> {
+			NodeInfo current = node;
+			while (true) {
+				try {
+					return current.address.equals(localNode.address) ? scanValues(start, end, limit) :
+						transport.scanValues(current.address, start, end, limit);
+				} catch (StatusRuntimeException e) {
+					if (e.getStatus().getCode() != Status.Code.UNAVAILABLE) {
+						throw e;
+					}
+					NodeInfo next = successorOf(current);
+					if (rangeSize(start, next.id).compareTo(rangeSize(start, current.id)) <= 0) {
+						throw e; // Routing has wrapped around without finding a node that answers
+					}
+					logger.info("Node " + current + " has failed, scanning its range at " + next);
+					current = next;
+				}
+			}
+		}, lookupExecutor);
+	}
+
+	/**
+	 * Get the successor of a node, routing past the node if it has failed.
+	 *
+	 * @param node the node.
+	 *
+	 * @return the successor of the node.
+	 */
+	private NodeInfo successorOf(NodeInfo node) {
+		if (node.address.equals(localNode.address)) {
+			return fingerTable[0];
+		}
+		try {
+			return transport.getSuccessor(node.address);
+		} catch (StatusRuntimeException e) {
+			if (e.getStatus().getCode() != Status.Code.UNAVAILABLE) {
+				throw e;
+			}
+			return findSuccessor(node.id.add(BigInteger.ONE).mod(hashRangeSize));
+		}
+	}
+
+	/**
+	 * Get the size of an identifier range.
+	 *
+	 * @param start the start of the range (exclusive).
+	 * @param end   the end of the range (inclusive), equal to start for the whole ring.
+	 *
+	 * @return the number of identifiers in the range.
+	 */
+	private static BigInteger rangeSize(BigInteger start, BigInteger end) {
+		BigInteger size = end.subtract(start).mod(hashRangeSize);
+		return size.signum() == 0 ? hashRangeSize : size;
+	}
+
+	/**
+	 * Get the values in an identifier range that this node stores.
+	 *
+	 * @param start the start of the range (exclusive).
+	 * @param end   the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit the maximum number of values, 0 for no limit.
+	 *
+	 * @return the identifiers and values, in ring order from start.
+	 */
+	@Override
+	public List<Map.Entry<BigInteger, byte[]>> scanValues(BigInteger start, BigInteger end, int limit) {
+		logger.info("Got scanValues request for (0x" + start.toString(16) + ", 0x" + end.toString(16) + "]");
+		List<NavigableMap<BigInteger, byte[]>> parts = start.compareTo(end) < 0 ?
+			Collections.singletonList(store.subMap(start, false, end, true)) :
+			Arrays.asList(store.tailMap(start, false), store.headMap(end, true)); // The range wraps around zero
+		List<Map.Entry<BigInteger, byte[]>> entries = new ArrayList<>();
+		for (NavigableMap<BigInteger, byte[]> part : parts) {
+			for (Map.Entry<BigInteger, byte[]> entry : part.entrySet()) {
+				if (limit > 0 && entries.size() == limit) {
+					return entries;
+				}
+				entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+			}
+		}
+		return entries;
+	}
+
 	public static void main(String[] args) throws NoSuchAlgorithmException, IOException, InterruptedException {
 		System.setProperty("org.slf4j.simpleLogger.logFile", "System.out");
 
@@ -348,14 +1704,14 @@ public class ChordNode implements ChordGrpcServerHandler {
 		ChordNode node = new ChordNode(otherNodeAddress);
 		System.out.println("Node has been initialized: " + node);
 
-		if (!ChordGrpcClient.healthCheck("localhost", port, 500)) {
+		if (!ChordGrpcClient.healthCheck(node.getLocalAddress(), port, 500)) {
 			System.err.println("Performing health check on self failed!");
 		}
 
 		// Print the state every 10 seconds
 		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-		executor.scheduleAtFixedRate(() -> System.out.println("Current state of the node: " + node), 2, 10,
-			TimeUnit.SECONDS);
+		executor.scheduleAtFixedRate(() -> System.out.println("Current state of the node: " + node + "\nThreads: " +
+			Thread.activeCount()), 2, 10, TimeUnit.SECONDS);
 
 		node.awaitTermination();
 	}
@@ -0,0 +1,748 @@
+package se.umu.cs.ads.chord;
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded discrete-event simulator of the Chord protocol. The protocol logic of {@link ChordNode} is run over a
+ * {@link SimulatedTransport} in virtual time. All randomness comes from one seeded generator, so a run is fully
+ * determined by its options.
+ * <p>
+ * Each operation (a lookup, a join or a maintenance round of a node) runs to completion at the virtual time of its
+ * event. The link latency of its calls is summed up into the duration of the operation, with the concurrent lookups
+ * of a node overlapping, instead of interleaving the calls with other events. Operations therefore never see each
+ * other's intermediate state, and results get more optimistic the more operations would have been in flight at once,
+ * which the report shows.
+ */
+public class ChordSimulator {
+	private static final int hashBits = 160;
+	private static final BigInteger hashRangeSize = BigInteger.ONE.shiftLeft(hashBits);
+
+	private static final String usage = "Usage: ChordSimulator [--nodes N] [--fingers M] [--seed S]" +
+		" [--duration SECONDS] [--maintenance-interval MS] [--lookup-rate PER_SECOND] [--churn-rate PER_SECOND]" +
+		" [--join-rate PER_SECOND] [--fail-at SECONDS] [--fail-fraction FRACTION] [--min-latency MS]" +
+		" [--max-latency MS] [--max-lookup-messages N] [--keys K] [--get-rate PER_SECOND] [--zipf-exponent S]" +
+		" [--cache-capacity N] [--cache-ttl MS] [--rebalance-bound RATIO] [--scans N]";
+
+	private final Random random;
+	private final SimulatedTransport transport;
+	private final ExecutorService directExecutor;
+	private final int fingerTableSize;
+	private final double maintenanceInterval; // Milliseconds
+	private final int maxLookupMessages; // Messages after which a lookup is considered to be looping
+	private final int cacheCapacity;
+	private final long cacheTimeToLive; // Milliseconds
+	private final double loadImbalanceBound;
+
+	private final PriorityQueue<Event> events = new PriorityQueue<>();
+	private long nextEventSequence;
+	private double now; // Virtual time in milliseconds
+
+	private final TreeMap<BigInteger, NodeInfo> ring = new TreeMap<>(); // The nodes that are in the network
+	private final Map<String, ChordNode> nodes = new HashMap<>();
+	private final List<String> aliveAddresses = new ArrayList<>(); // For picking random nodes
+	private final Map<String, Integer> aliveIndex = new HashMap<>();
+	private int nextAddress;
+
+	private final TreeMap<Integer, Long> lookupMessages = new TreeMap<>(); // Histogram of messages per lookup
+	private final List<Double> lookupLatencies = new ArrayList<>();
+	private final TreeMap<Integer, Long> joinMessages = new TreeMap<>(); // Histogram of messages per join
+	private final List<Double> joinLatencies = new ArrayList<>();
+	private BigInteger[] keys = new BigInteger[0]; // Stored identifiers, from most to least popular
+	private double[] keyPopularity = new double[0]; // Cumulative probability of reading each key
+	private final TreeMap<BigInteger, byte[]> storedValues = new TreeMap<>(); // Values that are not lost with a node
+	private long lookups;
+	private long incorrectLookups;
+	private long failedLookups;
+	private long gets;
+	private long failedGets;
+	private long missingValues;
+	private long joins;
+	private long failedJoins;
+	private long failures;
+	private long lostValues; // Values stored at nodes when they failed
+	private long maintenanceRounds;
+	private long failedMaintenanceRounds;
+	private long migrations;
+	private long maintenanceMessages;
+	private double operationMilliseconds; // Summed duration of all operations
+	private double nodeMilliseconds; // Integral of the number of nodes over virtual time
+	private double lastMembershipChange;
+
+	/**
+	 * Creates a simulator with an empty network.
+	 *
+	 * @param seed                the seed for all randomness in the simulation.
+	 * @param fingerTableSize     the number of entries in the finger table of every node.
+	 * @param maintenanceInterval the time between maintenance rounds of a node in milliseconds.
+	 * @param minLatency          the minimum link latency in milliseconds.
+	 * @param maxLatency          the maximum link latency in milliseconds.
+	 * @param maxLookupMessages   the number of messages after which a lookup fails. Joins and maintenance rounds may
+	 *                            use this many messages for each lookup they make.
+	 * @param cacheCapacity       the number of values each node can cache, 0 to disable caching.
+	 * @param cacheTimeToLive     the time in milliseconds after which a cached value expires.
+	 * @param loadImbalanceBound  the allowed ratio between the loads of a node and its successor, 0 to never move
+	 *                            identifiers.
+	 */
+	public ChordSimulator(long seed, int fingerTableSize, double maintenanceInterval, double minLatency,
+		double maxLatency, int maxLookupMessages, int cacheCapacity, long cacheTimeToLive, double loadImbalanceBound) {
+		random = new Random(seed);
+		transport = new SimulatedTransport(random, minLatency, maxLatency);
+		directExecutor = new DirectExecutorService(transport);
+		this.fingerTableSize = fingerTableSize;
+		this.maintenanceInterval = maintenanceInterval;
+		this.maxLookupMessages = maxLookupMessages;
+		this.cacheCapacity = cacheCapacity;
+		this.cacheTimeToLive = cacheTimeToLive;
+		this.loadImbalanceBound = loadImbalanceBound;
+	}
+
+	/**
+	 * Create a network of nodes with random identifiers whose routing state has already converged. Building a large
+	 * ring through joins would take far more simulation time than the study itself.
+	 *
+	 * @param nodeCount the number of nodes.
+	 *
+	 * @throws NoSuchAlgorithmException if a MessageDigest for SHA-1 cannot be found.
+	 */
+	public void createConvergedRing(int nodeCount) throws NoSuchAlgorithmException {
+		List<ChordNode> created = new ArrayList<>();
+		while (ring.size() < nodeCount) {
+			NodeInfo node = newNodeInfo();
+			if (!ring.containsKey(node.id)) {
+				ring.put(node.id, node);
+				created.add(addNode(node));
+			}
+		}
+		for (ChordNode node : created) {
+			BigInteger id = node.getLocalId();
+			NodeInfo[] fingers = new NodeInfo[fingerTableSize];
+			for (int i = 0; i < fingerTableSize; i++) {
+				fingers[i] = successorInRing(id.add(BigInteger.ONE.shiftLeft(i)).mod(hashRangeSize));
+			}
+			Map.Entry<BigInteger, NodeInfo> predecessor = ring.lowerEntry(id);
+			node.initRoutingState(fingers, predecessor != null ? predecessor.getValue() : ring.lastEntry().getValue());
+		}
+		for (String address : aliveAddresses) {
+			scheduleMaintenance(address, random.nextDouble() * maintenanceInterval);
+		}
+	}
+
+	/**
+	 * Schedule lookups of random identifiers from random nodes as a Poisson process.
+	 *
+	 * @param rate     the number of lookups per second.
+	 * @param duration the end of the simulation in milliseconds.
+	 */
+	public void scheduleLookups(double rate, double duration) {
+		schedulePoisson(rate, duration, this::lookup);
+	}
+
+	/**
+	 * Store values with random identifiers directly at their owners. The keys are read with Zipf-distributed
+	 * popularity.
+	 *
+	 * @param count        the number of values.
+	 * @param zipfExponent the exponent of the Zipf distribution, 0 for uniform popularity.
+	 */
+	public void storeValues(int count, double zipfExponent) {
+		keys = new BigInteger[count];
+		keyPopularity = new double[count];
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			keys[i] = new BigInteger(hashBits, random);
+			storeValue(keys[i], new byte[] {(byte) i});
+			total += 1 / Math.pow(i + 1, zipfExponent);
+			keyPopularity[i] = total;
+		}
+		for (int i = 0; i < count; i++) {
+			keyPopularity[i] /= total;
+		}
+	}
+
+	/**
+	 * Schedule reads of the stored values from random nodes as a Poisson process.
+	 *
+	 * @param rate     the number of reads per second.
+	 * @param duration the end of the simulation in milliseconds.
+	 */
+	public void scheduleGets(double rate, double duration) {
+		if (keys.length > 0) {
+			schedulePoisson(rate, duration, this::get);
+		}
+	}
+
+	/**
+	 * Schedule joins and failures of random nodes as a Poisson process. Half of the events are joins and half are
+	 * failures, so the network size stays roughly constant.
+	 *
+	 * @param rate     the number of churn events per second.
+	 * @param duration the end of the simulation in milliseconds.
+	 */
+	public void scheduleChurn(double rate, double duration) {
+		schedulePoisson(rate, duration, () -> {
+			if (random.nextBoolean()) {
+				joinNewNode();
+			} else {
+				failRandomNodes(1);
+			}
+		});
+	}
+
+	/**
+	 * Schedule joins of new nodes, without failures, as a Poisson process.
+	 *
+	 * @param rate     the number of joins per second.
+	 * @param duration the end of the simulation in milliseconds.
+	 */
+	public void scheduleJoins(double rate, double duration) {
+		schedulePoisson(rate, duration, this::joinNewNode);
+	}
+
+	/**
+	 * Schedule a simultaneous failure of a fraction of the nodes.
+	 *
+	 * @param time     the time of the failure in milliseconds.
+	 * @param fraction the fraction of the nodes that fail.
+	 */
+	public void scheduleMassFailure(double time, double fraction) {
+		schedule(time, () -> failRandomNodes((int) (aliveAddresses.size() * fraction)));
+	}
+
+	/**
+	 * Run all events up to the given time.
+	 *
+	 * @param duration the end of the simulation in milliseconds.
+	 */
+	public void run(double duration) {
+		while (!events.isEmpty() && events.peek().time <= duration) {
+			Event event = events.poll();
+			now = event.time;
+			event.action.run();
+		}
+		now = duration;
+		updateNodeMilliseconds();
+	}
+
+	/**
+	 * Print the results of the simulation.
+	 */
+	public void printReport() {
+		System.out.println("Virtual time: " + now / 1000 + " s");
+		System.out.println("Nodes: " + aliveAddresses.size() + " (joins: " + joins + ", failed joins: " +
+			failedJoins + ", failures: " + failures + ")");
+		if (!joinMessages.isEmpty()) {
+			Collections.sort(joinLatencies);
+			System.out.println("Messages per join: p50=" + histogramPercentile(joinMessages, 0.5) + " p90=" +
+				histogramPercentile(joinMessages, 0.9) + " p99=" + histogramPercentile(joinMessages, 0.99) + " max=" +
+				joinMessages.lastKey());
+			System.out.println("Join latency (ms): p50=" + String.format("%.1f", percentile(joinLatencies, 0.5)) +
+				" p90=" + String.format("%.1f", percentile(joinLatencies, 0.9)) + " p99=" +
+				String.format("%.1f", percentile(joinLatencies, 0.99)));
+		}
+
+		System.out.println("Lookups: " + lookups + " (incorrect: " + incorrectLookups + ", failed: " + failedLookups +
+			", failure rate: " + String.format("%.4f", lookups == 0 ? 0.0 :
+			(double) (incorrectLookups + failedLookups) / lookups) + ")");
+		if (!lookupMessages.isEmpty()) {
+			System.out.println("Messages per completed lookup: p50=" + histogramPercentile(lookupMessages, 0.5) +
+				" p90=" + histogramPercentile(lookupMessages, 0.9) + " p99=" +
+				histogramPercentile(lookupMessages, 0.99) + " max=" + lookupMessages.lastKey());
+			for (Map.Entry<Integer, Long> bucket : lookupMessages.entrySet()) {
+				System.out.println("\t" + bucket.getKey() + "\t" + bucket.getValue());
+			}
+			Collections.sort(lookupLatencies);
+			System.out.println("Lookup latency (ms): p50=" + String.format("%.1f", percentile(lookupLatencies, 0.5)) +
+				" p90=" + String.format("%.1f", percentile(lookupLatencies, 0.9)) + " p99=" +
+				String.format("%.1f", percentile(lookupLatencies, 0.99)));
+		}
+
+		double nodeSeconds = nodeMilliseconds / 1000;
+		if (gets > 0) {
+			long maxStoreReads = 0;
+			long totalStoreReads = 0;
+			long totalCacheReads = 0;
+			for (ChordNode node : nodes.values()) {
+				maxStoreReads = Math.max(maxStoreReads, node.getStoreReads());
+				totalStoreReads += node.getStoreReads();
+				totalCacheReads += node.getCacheReads();
+			}
+			System.out.println("Gets: " + gets + " (failed: " + failedGets + ", not found: " + missingValues +
+				"), answered by owners: " + totalStoreReads + ", by caches: " + totalCacheReads);
+			System.out.println("Owner load: max " + maxStoreReads + " reads at one node, mean " +
+				String.format("%.1f", (double) totalStoreReads / nodes.size()));
+		}
+		if (keys.length > 0) {
+			int maxKeys = 0;
+			for (ChordNode node : nodes.values()) {
+				maxKeys = Math.max(maxKeys, node.getKeyCount());
+			}
+			System.out.println("Keys: max " + maxKeys + " at one node, mean " +
+				String.format("%.1f", (double) keys.length / nodes.size()) + ", identifier migrations: " + migrations);
+		}
+
+		System.out.println("Maintenance rounds: " + maintenanceRounds + " (failed: " + failedMaintenanceRounds +
+			"), messages: " + maintenanceMessages + ", per node per second: " +
+			String.format("%.2f", nodeSeconds == 0 ? 0.0 : maintenanceMessages / nodeSeconds));
+		System.out.println("Operations run one at a time, mean that would have been in flight at once: " +
+			String.format("%.2f", now == 0 ? 0.0 : operationMilliseconds / now));
+		System.out.println("Messages by method:");
+		for (Map.Entry<String, Long> count : transport.getMessageCounts().entrySet()) {
+			System.out.println("\t" + count.getKey() + "\t" + count.getValue());
+		}
+	}
+
+	/**
+	 * Aggregate statistics over the network from a random node and print them.
+	 */
+	public void printAggregate() {
+		transport.beginOperation(Integer.MAX_VALUE);
+		AggregateResult result = nodes.get(randomAliveAddress()).aggregateRing(60000);
+		System.out.println("Aggregate: " + result.nodeCount + " nodes (actual: " + ring.size() + "), " +
+			result.keyCount + " keys, " + result.minKeys + "-" + result.maxKeys + " keys per node, complete: " +
+			result.complete + ", messages: " + transport.getOperationMessages());
+	}
+
+	/**
+	 * Read every stored value from a random node and print how many of them are still readable. Values are only lost
+	 * with the nodes that stored them, so any other missing value means that the routing state and the stored values
+	 * disagree about who owns it.
+	 */
+	public void printStoredValues() {
+		long readable = 0;
+		long notFound = 0;
+		long wrong = 0;
+		long failed = 0;
+		for (int i = 0; i < keys.length; i++) {
+			transport.beginOperation(maxLookupMessages);
+			try {
+				byte[] value = nodes.get(randomAliveAddress()).getValue(keys[i]);
+				if (value == null) {
+					notFound++;
+				} else if (Arrays.equals(value, new byte[] {(byte) i})) {
+					readable++;
+				} else {
+					wrong++;
+				}
+			} catch (RuntimeException e) {
+				failed++;
+			}
+		}
+		System.out.println("Stored values readable: " + readable + " of " + keys.length + " (not found: " + notFound +
+			", wrong value: " + wrong + ", failed: " + failed + ", lost with failed nodes: " + lostValues + ")");
+	}
+
+	/**
+	 * Scan random identifier ranges with random limits from random nodes, and then a few ranges around values with
+	 * known identifiers that end a scan at the edges of its limit. Print how many of the scans returned the values that
+	 * should be in the network, in ring order, with a cursor that resumes after the last returned value. A scan that
+	 * fails, because routing has not caught up with a failed node yet, is counted apart from a wrong one.
+	 *
+	 * @param count the number of random scans.
+	 */
+	public void printScans(int count) {
+		int correct = 0;
+		int failed = 0;
+		for (int i = 0; i < count; i++) {
+			BigInteger start = new BigInteger(hashBits, random);
+			BigInteger end = random.nextInt(10) == 0 ? start : new BigInteger(hashBits, random);
+			try {
+				if (scanIsCorrect(start, end, random.nextBoolean() ? 0 : 1 + random.nextInt(20))) {
+					correct++;
+				}
+			} catch (RuntimeException e) {
+				failed++;
+			}
+		}
+
+		BigInteger[] edgeIds = {BigInteger.valueOf(50), BigInteger.valueOf(90), BigInteger.valueOf(150),
+			BigInteger.valueOf(180), BigInteger.valueOf(250)};
+		for (int i = 0; i < edgeIds.length; i++) {
+			storeValue(edgeIds[i], new byte[] {(byte) i});
+		}
+		// The limit is reached at the end of the range, before it, exactly at it when resuming, and never
+		int[][] edgeScans = {{140, 180, 2}, {140, 180, 1}, {150, 180, 1}, {140, 180, 0}, {40, 250, 0}};
+		int correctEdges = 0;
+		int failedEdges = 0;
+		for (int[] scan : edgeScans) {
+			try {
+				if (scanIsCorrect(BigInteger.valueOf(scan[0]), BigInteger.valueOf(scan[1]), scan[2])) {
+					correctEdges++;
+				}
+			} catch (RuntimeException e) {
+				failedEdges++;
+			}
+		}
+		System.out.println("Scans correct: " + correct + " of " + count + " random ranges (failed: " + failed + "), " +
+			correctEdges + " of " + edgeScans.length + " at the edges of the limit (failed: " + failedEdges + ")");
+	}
+
+	/**
+	 * Scan a range from a random node and compare the result with the values that should be in the network.
+	 *
+	 * @param start the start of the range (exclusive).
+	 * @param end   the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit the maximum number of values, 0 for no limit.
+	 *
+	 * @return whether the scan returned the expected values and cursor.
+	 *
+	 * @throws RuntimeException if the scan fails.
+	 */
+	private boolean scanIsCorrect(BigInteger start, BigInteger end, int limit) {
+		List<Map.Entry<BigInteger, byte[]>> expected = new ArrayList<>();
+		if (start.compareTo(end) < 0) {
+			expected.addAll(storedValues.subMap(start, false, end, true).entrySet());
+		} else { // The range wraps around zero
+			expected.addAll(storedValues.tailMap(start, false).entrySet());
+			expected.addAll(storedValues.headMap(end, true).entrySet());
+		}
+		List<Map.Entry<BigInteger, byte[]>> scanned = new ArrayList<>();
+		transport.beginOperation(Integer.MAX_VALUE);
+		BigInteger cursor = nodes.get(randomAliveAddress()).scan(start, end, limit,
+			(id, value) -> scanned.add(new AbstractMap.SimpleImmutableEntry<>(id, value)));
+
+		int count = limit == 0 ? expected.size() : Math.min(limit, expected.size());
+		if (scanned.size() != count) {
+			return false;
+		}
+		for (int i = 0; i < count; i++) {
+			if (!scanned.get(i).getKey().equals(expected.get(i).getKey()) ||
+				!Arrays.equals(scanned.get(i).getValue(), expected.get(i).getValue())) {
+				return false;
+			}
+		}
+		BigInteger last = count == 0 ? null : scanned.get(count - 1).getKey();
+		if (count < expected.size()) {
+			return last.equals(cursor);
+		}
+		// Nothing is left, but a scan that stopped at its limit before the end of the range cannot know that
+		return cursor == null || count == limit && !last.equals(end) && last.equals(cursor);
+	}
+
+	private void lookup() {
+		ChordNode node = nodes.get(randomAliveAddress());
+		BigInteger id = new BigInteger(hashBits, random);
+		lookups++;
+		transport.beginOperation(maxLookupMessages);
+		try {
+			NodeInfo result = node.findSuccessor(id);
+			if (!result.address.equals(successorInRing(id).address)) {
+				incorrectLookups++;
+			}
+			lookupMessages.merge(transport.getOperationMessages(), 1L, Long::sum);
+			lookupLatencies.add(transport.getOperationLatency());
+		} catch (RuntimeException e) {
+			failedLookups++;
+		}
+		operationMilliseconds += transport.getOperationLatency();
+	}
+
+	private void get() {
+		int rank = Arrays.binarySearch(keyPopularity, random.nextDouble());
+		if (rank < 0) {
+			rank = -rank - 1;
+		}
+		BigInteger id = keys[Math.min(rank, keys.length - 1)];
+		ChordNode node = nodes.get(randomAliveAddress());
+		gets++;
+		transport.beginOperation(maxLookupMessages);
+		try {
+			if (node.getValue(id) == null) {
+				missingValues++;
+			}
+		} catch (RuntimeException e) {
+			failedGets++;
+		}
+		operationMilliseconds += transport.getOperationLatency();
+	}
+
+	private void joinNewNode() {
+		NodeInfo info = newNodeInfo();
+		if (ring.containsKey(info.id)) {
+			return;
+		}
+		String bootstrap = randomAliveAddress();
+		ChordNode node;
+		try {
+			node = addNode(info);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		// Joining makes two lookups for every finger
+		transport.beginOperation(2 * fingerTableSize * maxLookupMessages);
+		try {
+			node.join(bootstrap);
+		} catch (RuntimeException e) {
+			operationMilliseconds += transport.getOperationLatency();
+			failedJoins++;
+			removeNode(info.address);
+			return;
+		}
+		operationMilliseconds += transport.getOperationLatency();
+		joinMessages.merge(transport.getOperationMessages(), 1L, Long::sum);
+		joinLatencies.add(transport.getOperationLatency());
+		joins++;
+		updateNodeMilliseconds();
+		ring.put(info.id, info);
+		scheduleMaintenance(info.address, now + maintenanceInterval);
+	}
+
+	private void failRandomNodes(int count) {
+		for (int i = 0; i < count && aliveAddresses.size() > 1; i++) {
+			String address = randomAliveAddress();
+			updateNodeMilliseconds();
+			ring.remove(nodes.get(address).getLocalId());
+			lostValues += nodes.get(address).getKeyCount();
+			for (Map.Entry<BigInteger, byte[]> entry : nodes.get(address).scanValues(BigInteger.ZERO, BigInteger.ZERO,
+				0)) {
+				storedValues.remove(entry.getKey());
+			}
+			removeNode(address);
+			failures++;
+		}
+	}
+
+	private void scheduleMaintenance(String address, double time) {
+		schedule(time, () -> {
+			ChordNode node = nodes.get(address);
+			if (node == null) { // The node has failed
+				return;
+			}
+			maintenanceRounds++;
+			// A round that moves the node's identifier makes as many lookups as a join
+			transport.beginOperation(loadImbalanceBound == 0 ? maxLookupMessages :
+				2 * fingerTableSize * maxLookupMessages);
+			BigInteger id = node.getLocalId();
+			if (!node.maintain()) {
+				failedMaintenanceRounds++;
+			}
+			if (!node.getLocalId().equals(id)) { // The node handed over part of its range to its successor
+				ring.remove(id);
+				ring.put(node.getLocalId(), new NodeInfo(node.getLocalId(), address));
+				migrations++;
+			}
+			maintenanceMessages += transport.getOperationMessages();
+			operationMilliseconds += transport.getOperationLatency();
+			scheduleMaintenance(address, now + maintenanceInterval);
+		});
+	}
+
+	private void schedulePoisson(double rate, double duration, Runnable action) {
+		if (rate <= 0) {
+			return;
+		}
+		double time = 0;
+		while (true) {
+			time += -Math.log(1 - random.nextDouble()) / rate * 1000;
+			if (time > duration) {
+				return;
+			}
+			schedule(time, action);
+		}
+	}
+
+	private void schedule(double time, Runnable action) {
+		events.add(new Event(time, nextEventSequence++, action));
+	}
+
+	private void storeValue(BigInteger id, byte[] value) {
+		nodes.get(successorInRing(id).address).storeValue(id, value);
+		storedValues.put(id, value);
+	}
+
+	private NodeInfo newNodeInfo() {
+		return new NodeInfo(new BigInteger(hashBits, random), "node-" + nextAddress++);
+	}
+
+	private ChordNode addNode(NodeInfo info) throws NoSuchAlgorithmException {
+		ChordNode node = new ChordNode(info, fingerTableSize, transport, directExecutor,
+			new ValueCache(cacheCapacity, cacheTimeToLive, () -> (long) now));
+		node.setLoadImbalanceBound(loadImbalanceBound);
+		nodes.put(info.address, node);
+		transport.addNode(info.address, node);
+		aliveIndex.put(info.address, aliveAddresses.size());
+		aliveAddresses.add(info.address);
+		return node;
+	}
+
+	private void removeNode(String address) {
+		nodes.remove(address);
+		transport.removeNode(address);
+		// Move the last address into the removed slot
+		int index = aliveIndex.remove(address);
+		String last = aliveAddresses.remove(aliveAddresses.size() - 1);
+		if (!last.equals(address)) {
+			aliveAddresses.set(index, last);
+			aliveIndex.put(last, index);
+		}
+	}
+
+	private String randomAliveAddress() {
+		return aliveAddresses.get(random.nextInt(aliveAddresses.size()));
+	}
+
+	private NodeInfo successorInRing(BigInteger id) {
+		Map.Entry<BigInteger, NodeInfo> successor = ring.ceilingEntry(id);
+		return successor != null ? successor.getValue() : ring.firstEntry().getValue();
+	}
+
+	private void updateNodeMilliseconds() {
+		nodeMilliseconds += ring.size() * (now - lastMembershipChange);
+		lastMembershipChange = now;
+	}
+
+	private static int histogramPercentile(TreeMap<Integer, Long> histogram, double percentile) {
+		long total = 0;
+		for (long count : histogram.values()) {
+			total += count;
+		}
+		long seen = 0;
+		for (Map.Entry<Integer, Long> bucket : histogram.entrySet()) {
+			seen += bucket.getValue();
+			if (seen >= percentile * total) {
+				return bucket.getKey();
+			}
+		}
+		return histogram.lastKey();
+	}
+
+	private static double percentile(List<Double> sorted, double percentile) {
+		int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+		return sorted.get(Math.max(index, 0));
+	}
+
+	private static class Event implements Comparable<Event> {
+		final double time;
+		final long sequence; // Orders events at the same time by when they were scheduled
+		final Runnable action;
+
+		Event(double time, long sequence, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			int byTime = Double.compare(time, other.time);
+			return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * Executor that runs tasks in the calling thread, so that the concurrent lookups of a node stay deterministic. The
+	 * transport still accounts for the latency of the tasks as if they ran concurrently.
+	 */
+	private static class DirectExecutorService extends AbstractExecutorService {
+		private final SimulatedTransport transport;
+		private boolean shutdown;
+
+		DirectExecutorService(SimulatedTransport transport) {
+			this.transport = transport;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			transport.beginConcurrentTask();
+			try {
+				command.run();
+			} finally {
+				transport.endConcurrentTask();
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+	}
+
+	public static void main(String[] args) throws NoSuchAlgorithmException {
+		System.setProperty("org.slf4j.simpleLogger.logFile", "System.out");
+		if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+			System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+		}
+
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 >= args.length) {
+				System.err.println(usage);
+				System.exit(1);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		int nodeCount = Integer.parseInt(options.getOrDefault("nodes", "1000"));
+		int fingerTableSize = Integer.parseInt(options.getOrDefault("fingers", String.valueOf(hashBits)));
+		long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+		double duration = Double.parseDouble(options.getOrDefault("duration", "60")) * 1000;
+		double maintenanceInterval = Double.parseDouble(options.getOrDefault("maintenance-interval", "1000"));
+		double lookupRate = Double.parseDouble(options.getOrDefault("lookup-rate", "100"));
+		double churnRate = Double.parseDouble(options.getOrDefault("churn-rate", "0"));
+		double joinRate = Double.parseDouble(options.getOrDefault("join-rate", "0"));
+		double minLatency = Double.parseDouble(options.getOrDefault("min-latency", "10"));
+		double maxLatency = Double.parseDouble(options.getOrDefault("max-latency", "100"));
+		int maxLookupMessages = Integer.parseInt(options.getOrDefault("max-lookup-messages", "1000"));
+		int keyCount = Integer.parseInt(options.getOrDefault("keys", "0"));
+		double getRate = Double.parseDouble(options.getOrDefault("get-rate", "0"));
+		double zipfExponent = Double.parseDouble(options.getOrDefault("zipf-exponent", "1"));
+		int cacheCapacity = Integer.parseInt(options.getOrDefault("cache-capacity", "1024"));
+		long cacheTimeToLive = Long.parseLong(options.getOrDefault("cache-ttl", "30000"));
+		double loadImbalanceBound = Double.parseDouble(options.getOrDefault("rebalance-bound", "0"));
+		int scanCount = Integer.parseInt(options.getOrDefault("scans", "100"));
+
+		ChordSimulator simulator = new ChordSimulator(seed, fingerTableSize, maintenanceInterval, minLatency,
+			maxLatency, maxLookupMessages, cacheCapacity, cacheTimeToLive, loadImbalanceBound);
+		simulator.createConvergedRing(nodeCount);
+		simulator.storeValues(keyCount, zipfExponent);
+		simulator.scheduleLookups(lookupRate, duration);
+		simulator.scheduleGets(getRate, duration);
+		simulator.scheduleChurn(churnRate, duration);
+		simulator.scheduleJoins(joinRate, duration);
+		if (options.containsKey("fail-at")) {
+			simulator.scheduleMassFailure(Double.parseDouble(options.get("fail-at")) * 1000,
+				Double.parseDouble(options.getOrDefault("fail-fraction", "0.1")));
+		}
+		simulator.run(duration);
+		simulator.printReport();
+		simulator.printAggregate();
+		if (keyCount > 0) {
+			simulator.printStoredValues();
+			simulator.printScans(scanCount);
+		}
+	}
+}
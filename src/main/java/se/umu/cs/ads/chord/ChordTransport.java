@@ -0,0 +1,174 @@
+package se.umu.cs.ads.chord;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interface for the calls a Chord node makes to other Chord nodes. This separates the protocol logic in
+ * {@link ChordNode} from the transport, so that the protocol can be run over gRPC or in a simulator.
+ */
+public interface ChordTransport {
+	/**
+	 * Perform a health check of a Chord node.
+	 *
+	 * @param address the address to the node.
+	 * @param timeout the maximum time to wait for a response in milliseconds.
+	 *
+	 * @return the status returned by the node.
+	 */
+	boolean healthCheck(String address, int timeout);
+
+	/**
+	 * Call the findSuccessor method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param identifier the identifier to pass to the method.
+	 *
+	 * @return the successor returned from the node.
+	 */
+	NodeInfo findSuccessor(String address, BigInteger identifier);
+
+	/**
+	 * Call the getSuccessor method on another node.
+	 *
+	 * @param address the address to the node.
+	 *
+	 * @return the successor returned from the node.
+	 */
+	NodeInfo getSuccessor(String address);
+
+	/**
+	 * Call the getPredecessor method on another node.
+	 *
+	 * @param address the address to the node.
+	 *
+	 * @return the predecessor returned from the node.
+	 */
+	NodeInfo getPredecessor(String address);
+
+	/**
+	 * Call the setPredecessor method on another node.
+	 *
+	 * @param address     the address to the node.
+	 * @param predecessor the node to set as the predecessor.
+	 */
+	void setPredecessor(String address, NodeInfo predecessor);
+
+	/**
+	 * Call the handOver method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param node    the joining node to hand over values to.
+	 */
+	void handOver(String address, NodeInfo node);
+
+	/**
+	 * Call the updateFingerTable method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param node    the node to potentially put in the target node's finger table.
+	 * @param index   the index in the finger table.
+	 */
+	void updateFingerTable(String address, NodeInfo node, int index);
+
+	/**
+	 * Call the closestPrecedingFinger method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param identifier the identifier to pass to the method.
+	 *
+	 * @return the node returned from the node.
+	 */
+	NodeInfo closestPrecedingFinger(String address, BigInteger identifier);
+
+	/**
+	 * Call the notify method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param node    the node to pass as the potential predecessor.
+	 */
+	void notify(String address, NodeInfo node);
+
+	/**
+	 * Call the stabilize method on another node.
+	 *
+	 * @param address       the address to the node.
+	 * @param node          the node to pass as the potential predecessor.
+	 * @param fingerVersion the node's finger table version at the last call, or 0 for the full finger table.
+	 *
+	 * @return the predecessor and changed fingers of the node after it has been notified.
+	 */
+	StabilizeResult stabilize(String address, NodeInfo node, long fingerVersion);
+
+	/**
+	 * Call the getFingerTable method on another node.
+	 *
+	 * @param address the address to the node.
+	 *
+	 * @return the finger table returned from the node.
+	 */
+	NodeInfo[] getFingerTable(String address);
+
+	/**
+	 * Call the storeValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param identifier the identifier of the value.
+	 * @param value      the value.
+	 */
+	void storeValue(String address, BigInteger identifier, byte[] value);
+
+	/**
+	 * Call the lookupValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param identifier the identifier of the value.
+	 * @param owner      whether the node is known to be the owner of the identifier.
+	 * @param path       the nodes that the lookup has passed through.
+	 *
+	 * @return the value or the next node to ask.
+	 */
+	LookupValueResult lookupValue(String address, BigInteger identifier, boolean owner, List<NodeInfo> path);
+
+	/**
+	 * Call the cacheValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param identifier the identifier of the value.
+	 * @param value      the value.
+	 */
+	void cacheValue(String address, BigInteger identifier, byte[] value);
+
+	/**
+	 * Call the invalidateValue method on another node.
+	 *
+	 * @param address    the address to the node.
+	 * @param identifier the identifier of the value.
+	 */
+	void invalidateValue(String address, BigInteger identifier);
+
+	/**
+	 * Call the aggregate method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param start   the start of the interval (inclusive), or null for the whole ring from the node.
+	 * @param limit   the end of the interval (exclusive), or null for the whole ring from the node.
+	 * @param timeout the maximum time to wait for a response in milliseconds.
+	 *
+	 * @return the statistics returned by the node.
+	 */
+	AggregateResult aggregate(String address, BigInteger start, BigInteger limit, long timeout);
+
+	/**
+	 * Call the scanValues method on another node.
+	 *
+	 * @param address the address to the node.
+	 * @param start   the start of the range (exclusive).
+	 * @param end     the end of the range (inclusive), equal to start for the whole ring.
+	 * @param limit   the maximum number of values, 0 for no limit.
+	 *
+	 * @return the identifiers and values stored by the node, in ring order from start.
+	 */
+	List<Map.Entry<BigInteger, byte[]>> scanValues(String address, BigInteger start, BigInteger end, int limit);
+}
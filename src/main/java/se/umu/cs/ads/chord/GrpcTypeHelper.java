@@ -1,10 +1,27 @@
 package se.umu.cs.ads.chord;
 
 import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import io.grpc.Status;
 
 public class GrpcTypeHelper {
+	/**
+	 * Version of the wire encoding. Version 2 encodes identifiers with a fixed width instead of the variable-length
+	 * two's complement representation of {@link BigInteger#toByteArray()}. Version 3 sends each distinct node of a
+	 * finger table once, and the fingers as indexes into those nodes. Version 4 replaces setPredecessor with handOver
+	 * when joining.
+	 */
+	public static final int protocolVersion = 4;
+
+	private static final int identifierBytes = 20; // 160 bits
+	// BigInteger copies the magnitude it is given, so the bytes of an identifier are decoded through a reused buffer
+	private static final ThreadLocal<byte[]> identifierBuffer = ThreadLocal.withInitial(() -> new byte[identifierBytes]);
+
 	public static NodeInfo nodeInfoFromNode(Node node) {
 		return new NodeInfo(bigIntegerFromIdentifier(node.getIdentifier()), node.getAddress());
 	}
@@ -14,11 +31,106 @@ public class GrpcTypeHelper {
 			.build();
 	}
 
+	/**
+	 * Decode an identifier from exactly 20 unsigned big-endian bytes.
+	 *
+	 * @param identifier the encoded identifier.
+	 *
+	 * @return the identifier.
+	 *
+	 * @throws io.grpc.StatusRuntimeException with status INVALID_ARGUMENT if the identifier is not 20 bytes long.
+	 */
 	public static BigInteger bigIntegerFromIdentifier(Identifier identifier) {
-		return new BigInteger(1, identifier.getValue().toByteArray());
+		ByteString value = identifier.getValue();
+		if (value.size() != identifierBytes) {
+			throw Status.INVALID_ARGUMENT.withDescription("Identifier has " + value.size() + " bytes instead of " +
+				identifierBytes).asRuntimeException();
+		}
+		byte[] magnitude = identifierBuffer.get();
+		value.copyTo(magnitude, 0);
+		return new BigInteger(1, magnitude);
 	}
 
+	/**
+	 * Encode an identifier as exactly 20 unsigned big-endian bytes.
+	 *
+	 * @param bigInteger the identifier, in the range [0, 2^160).
+	 *
+	 * @return the encoded identifier.
+	 *
+	 * @throws IllegalArgumentException if the identifier does not fit in 160 unsigned bits.
+	 */
 	public static Identifier identifierFromBigInteger(BigInteger bigInteger) {
-		return Identifier.newBuilder().setValue(ByteString.copyFrom(bigInteger.toByteArray())).build();
+		if (bigInteger.signum() < 0 || bigInteger.bitLength() > identifierBytes * 8) {
+			throw new IllegalArgumentException("Identifier 0x" + bigInteger.toString(16) + " is out of range");
+		}
+		// toByteArray may contain a leading sign byte or fewer bytes than the fixed width
+		byte[] magnitude = bigInteger.toByteArray();
+		int length = Math.min(magnitude.length, identifierBytes);
+		byte[] value = new byte[identifierBytes];
+		System.arraycopy(magnitude, magnitude.length - length, value, identifierBytes - length, length);
+		// The array is never modified after this, so it can be wrapped without copying
+		return Identifier.newBuilder().setValue(UnsafeByteOperations.unsafeWrap(value)).build();
+	}
+
+	/**
+	 * Encode a finger table, where each distinct node is sent once and the fingers refer to the nodes by index.
+	 *
+	 * @param fingers the finger table.
+	 *
+	 * @return the encoded finger table.
+	 */
+	public static FingerTable fingerTableFromNodeInfos(NodeInfo[] fingers) {
+		FingerTable.Builder fingerTable = FingerTable.newBuilder();
+		Map<BigInteger, Integer> indexes = new HashMap<>();
+		for (NodeInfo finger : fingers) {
+			Integer index = indexes.get(finger.id);
+			if (index == null) {
+				index = indexes.size();
+				indexes.put(finger.id, index);
+				fingerTable.addNodes(nodeFromNodeInfo(finger));
+			}
+			fingerTable.addFingers(index);
+		}
+		return fingerTable.build();
+	}
+
+	/**
+	 * Decode a finger table. Fingers that refer to the same node share one NodeInfo.
+	 *
+	 * @param fingerTable the encoded finger table.
+	 *
+	 * @return the finger table.
+	 *
+	 * @throws io.grpc.StatusRuntimeException with status INVALID_ARGUMENT if a finger refers to a node that is not in
+	 *                                        the table.
+	 */
+	public static NodeInfo[] nodeInfosFromFingerTable(FingerTable fingerTable) {
+		NodeInfo[] nodes = new NodeInfo[fingerTable.getNodesCount()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = nodeInfoFromNode(fingerTable.getNodes(i));
+		}
+		NodeInfo[] fingers = new NodeInfo[fingerTable.getFingersCount()];
+		for (int i = 0; i < fingers.length; i++) {
+			int index = fingerTable.getFingers(i);
+			if (index < 0 || index >= nodes.length) {
+				throw Status.INVALID_ARGUMENT.withDescription("Finger " + i + " refers to node " + index + " of " +
+					nodes.length).asRuntimeException();
+			}
+			fingers[i] = nodes[index];
+		}
+		return fingers;
+	}
+
+	public static AggregateResult aggregateResultFromAggregateResponse(AggregateResponse response) {
+		return new AggregateResult(response.getNodeCount(), response.getKeyCount(), response.getMinKeys(),
+			response.getMaxKeys(), response.getMinProtocolVersion(), response.getMaxProtocolVersion(),
+			response.getComplete());
+	}
+
+	public static AggregateResponse aggregateResponseFromAggregateResult(AggregateResult result) {
+		return AggregateResponse.newBuilder().setNodeCount(result.nodeCount).setKeyCount(result.keyCount)
+			.setMinKeys(result.minKeys).setMaxKeys(result.maxKeys).setMinProtocolVersion(result.minProtocolVersion)
+			.setMaxProtocolVersion(result.maxProtocolVersion).setComplete(result.complete).build();
 	}
 }
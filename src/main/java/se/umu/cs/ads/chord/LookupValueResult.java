@@ -0,0 +1,17 @@
+package se.umu.cs.ads.chord;
+
+/**
+ * The result of one step of a value lookup. Either the value has been found (or is known not to exist), or the lookup
+ * continues at the next node.
+ */
+class LookupValueResult {
+	final byte[] value; // null if the value does not exist or the lookup continues
+	final NodeInfo nextNode; // null if the lookup is done
+	final boolean nextIsOwner; // The next node is the owner of the identifier
+
+	public LookupValueResult(byte[] value, NodeInfo nextNode, boolean nextIsOwner) {
+		this.value = value;
+		this.nextNode = nextNode;
+		this.nextIsOwner = nextIsOwner;
+	}
+}
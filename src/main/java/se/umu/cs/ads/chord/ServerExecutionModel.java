@@ -0,0 +1,77 @@
+package se.umu.cs.ads.chord;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The thread model used by {@link ChordGrpcServer} for running the handlers of incoming calls.
+ */
+public enum ServerExecutionModel {
+	/**
+	 * gRPC's default executor, an unbounded cached thread pool. Every call that blocks on a remote hop holds a thread,
+	 * so the number of threads grows with the number of concurrent calls.
+	 */
+	CACHED,
+	/**
+	 * A work-stealing pool with a fixed number of threads for the calls that start a lookup, such as put, get and
+	 * findSuccessor. The handlers that other nodes' handlers wait for, such as storeValue during a put or the routing
+	 * calls of a lookup, run inline or on a separate unbounded pool instead, since two nodes whose bounded pools wait
+	 * for each other would deadlock. The threads that wait for remote hops are thereby bounded by the pools of the
+	 * nodes that started the lookups.
+	 */
+	BOUNDED,
+	/**
+	 * One virtual thread per call, so a call that blocks on a remote hop does not hold an OS thread. Requires JDK 21 or
+	 * later at runtime.
+	 */
+	VIRTUAL_THREADS;
+
+	/**
+	 * Create the executor for the handlers.
+	 *
+	 * @param threads the number of threads for {@link #BOUNDED}.
+	 *
+	 * @return the executor, or null to use gRPC's default executor.
+	 *
+	 * @throws IllegalStateException if virtual threads are not supported by the JDK.
+	 */
+	public ExecutorService createExecutor(int threads) {
+		switch (this) {
+			case BOUNDED:
+				return new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+			case VIRTUAL_THREADS:
+				try {
+					// Looked up reflectively since the code is compiled for Java 8
+					return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+					throw new IllegalStateException("Virtual threads are not supported by this JDK", e);
+				}
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Get an execution model from its name.
+	 *
+	 * @param name "cached", "bounded" or "virtual".
+	 *
+	 * @return the execution model.
+	 *
+	 * @throws IllegalArgumentException if the name is unknown.
+	 */
+	public static ServerExecutionModel fromName(String name) {
+		switch (name) {
+			case "cached":
+				return CACHED;
+			case "bounded":
+				return BOUNDED;
+			case "virtual":
+				return VIRTUAL_THREADS;
+			default:
+				throw new IllegalArgumentException("Unknown server execution model '" + name + "'");
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package se.umu.cs.ads.chord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import io.grpc.Status;
+
+/**
+ * Transport that delivers calls directly to other {@link ChordNode} instances in the same process. Every call is
+ * counted as a message and adds a random link latency to the current operation. Calls to nodes that are not in the
+ * network fail like unreachable gRPC servers.
+ * <p>
+ * Tasks that a node submits to its executor one after another, without making calls of its own in between, are
+ * concurrent. Each of them starts at the latency the batch started at, and the operation continues when the slowest
+ * of them has finished.
+ */
+class SimulatedTransport implements ChordTransport {
+	private final Map<String, ChordNode> nodes = new HashMap<>();
+	private final Map<String, Long> messageCounts = new TreeMap<>(); // Total number of messages per method
+	private final Random random;
+	private final double minLatency; // Milliseconds
+	private final double maxLatency; // Milliseconds
+
+	private int operationMessageLimit;
+	private int operationMessages;
+	private double operationLatency;
+	// Start and end latency of the open batch of concurrent tasks at each task nesting depth, NaN when none is open
+	private final List<double[]> concurrentBatches = new ArrayList<>();
+	private int taskDepth;
+
+	/**
+	 * Creates a new simulated transport.
+	 *
+	 * @param random     the random number generator for link latencies.
+	 * @param minLatency the minimum latency of a call in milliseconds.
+	 * @param maxLatency the maximum latency of a call in milliseconds.
+	 */
+	public SimulatedTransport(Random random, double minLatency, double maxLatency) {
+		this.random = random;
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+	}
+
+	void addNode(String address, ChordNode node) {
+		nodes.put(address, node);
+	}
+
+	void removeNode(String address) {
+		nodes.remove(address);
+	}
+
+	/**
+	 * Start counting messages and latency for a new operation.
+	 *
+	 * @param messageLimit the number of messages after which the operation fails, like a deadline. This stops
+	 *                     operations that would loop forever on inconsistent routing state.
+	 */
+	void beginOperation(int messageLimit) {
+		operationMessageLimit = messageLimit;
+		operationMessages = 0;
+		operationLatency = 0;
+		concurrentBatches.clear();
+		taskDepth = 0;
+	}
+
+	/**
+	 * Start a task that runs concurrently with the tasks submitted right before it.
+	 */
+	void beginConcurrentTask() {
+		if (concurrentBatches.size() <= taskDepth) {
+			concurrentBatches.add(new double[] {Double.NaN, Double.NaN});
+		}
+		double[] batch = concurrentBatches.get(taskDepth);
+		if (Double.isNaN(batch[0])) {
+			batch[0] = operationLatency;
+			batch[1] = operationLatency;
+		}
+		operationLatency = batch[0];
+		taskDepth++;
+	}
+
+	/**
+	 * End a task started with {@link #beginConcurrentTask()}. The operation is then as far along as the slowest task
+	 * of the batch.
+	 */
+	void endConcurrentTask() {
+		endConcurrentBatches(taskDepth);
+		taskDepth--;
+		double[] batch = concurrentBatches.get(taskDepth);
+		batch[1] = Math.max(batch[1], operationLatency);
+		operationLatency = batch[1];
+	}
+
+	/**
+	 * Close the batches of concurrent tasks at a nesting depth and below it, so that the next task starts a new batch.
+	 *
+	 * @param depth the nesting depth.
+	 */
+	private void endConcurrentBatches(int depth) {
+		for (int i = depth; i < concurrentBatches.size(); i++) {
+			concurrentBatches.get(i)[0] = Double.NaN;
+		}
+	}
+
+	int getOperationMessages() {
+		return operationMessages;
+	}
+
+	double getOperationLatency() {
+		return operationLatency;
+	}
+
+	Map<String, Long> getMessageCounts() {
+		return messageCounts;
+	}
+
+	/**
+	 * Account for a message and find the node that receives it.
+	 *
+	 * @param method  the name of the called method.
+	 * @param address the address to the receiving node.
+	 *
+	 * @return the receiving node.
+	 */
+	private ChordNode send(String method, String address) {
+		// A call made between tasks waits for the tasks before it
+		endConcurrentBatches(taskDepth);
+		operationMessages++;
+		if (operationMessages > operationMessageLimit) {
+			throw Status.DEADLINE_EXCEEDED.withDescription("Operation exceeded " + operationMessageLimit +
+				" messages").asRuntimeException();
+		}
+		messageCounts.merge(method, 1L, Long::sum);
+		operationLatency += minLatency + random.nextDouble() * (maxLatency - minLatency);
+
+		ChordNode node = nodes.get(address);
+		if (node == null) {
+			throw Status.UNAVAILABLE.withDescription("Node " + address + " is not reachable").asRuntimeException();
+		}
+		return node;
+	}
+
+	@Override
+	public boolean healthCheck(String address, int timeout) {
+		return send("healthCheck", address).healthCheck();
+	}
+
+	@Override
+	public NodeInfo findSuccessor(String address, BigInteger identifier) {
+		return send("findSuccessor", address).findSuccessor(identifier);
+	}
+
+	@Override
+	public NodeInfo getSuccessor(String address) {
+		return send("getSuccessor", address).getSuccessor();
+	}
+
+	@Override
+	public NodeInfo getPredecessor(String address) {
+		NodeInfo predecessor = send("getPredecessor", address).getPredecessor();
+		if (predecessor == null) {
+			throw Status.NOT_FOUND.withDescription("No predecessor").asRuntimeException();
+		}
+		return predecessor;
+	}
+
+	@Override
+	public void setPredecessor(String address, NodeInfo predecessor) {
+		send("setPredecessor", address).setPredecessor(predecessor);
+	}
+
+	@Override
+	public void handOver(String address, NodeInfo node) {
+		send("handOver", address).handOver(node);
+	}
+
+	@Override
+	public void updateFingerTable(String address, NodeInfo node, int index) {
+		send("updateFingerTable", address).updateFingerTable(node, index);
+	}
+
+	@Override
+	public NodeInfo closestPrecedingFinger(String address, BigInteger identifier) {
+		return send("closestPrecedingFinger", address).closestPrecedingFinger(identifier);
+	}
+
+	@Override
+	public void notify(String address, NodeInfo node) {
+		send("notify", address).notify(node);
+	}
+
+	@Override
+	public StabilizeResult stabilize(String address, NodeInfo node, long fingerVersion) {
+		return send("stabilize", address).stabilize(node, fingerVersion);
+	}
+
+	@Override
+	public NodeInfo[] getFingerTable(String address) {
+		return send("getFingerTable", address).getFingerTable();
+	}
+
+	@Override
+	public void storeValue(String address, BigInteger identifier, byte[] value) {
+		send("storeValue", address).storeValue(identifier, value);
+	}
+
+	@Override
+	public LookupValueResult lookupValue(String address, BigInteger identifier, boolean owner, List<NodeInfo> path) {
+		return send("lookupValue", address).lookupValue(identifier, owner, path);
+	}
+
+	@Override
+	public void cacheValue(String address, BigInteger identifier, byte[] value) {
+		send("cacheValue", address).cacheValue(identifier, value);
+	}
+
+	@Override
+	public void invalidateValue(String address, BigInteger identifier) {
+		send("invalidateValue", address).invalidateValue(identifier);
+	}
+
+	@Override
+	public AggregateResult aggregate(String address, BigInteger start, BigInteger limit, long timeout) {
+		return send("aggregate", address).aggregate(start, limit, timeout);
+	}
+
+	@Override
+	public List<Map.Entry<BigInteger, byte[]>> scanValues(String address, BigInteger start, BigInteger end, int limit) {
+		return send("scanValues", address).scanValues(start, end, limit);
+	}
+}
@@ -0,0 +1,18 @@
+package se.umu.cs.ads.chord;
+
+/**
+ * The routing state returned by a node's successor during stabilization.
+ */
+class StabilizeResult {
+	final NodeInfo predecessor; // null if the successor has no predecessor
+	final NodeInfo[] fingers; // The successor first, then the fingers that changed since the version passed
+	final long fingerVersion; // The successor's finger table version
+	final long load; // The successor's load in its last maintenance round
+
+	public StabilizeResult(NodeInfo predecessor, NodeInfo[] fingers, long fingerVersion, long load) {
+		this.predecessor = predecessor;
+		this.fingers = fingers;
+		this.fingerVersion = fingerVersion;
+		this.load = load;
+	}
+}
@@ -0,0 +1,71 @@
+package se.umu.cs.ads.chord;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of values owned by other nodes. The least recently used entry is evicted when the cache is full, and
+ * entries expire after a fixed time so that a stale copy is not served forever after the value has been replaced.
+ */
+class ValueCache {
+	private final long timeToLive; // Milliseconds
+	private final LongSupplier clock; // Current time in milliseconds
+	private final Map<BigInteger, CachedValue> entries;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param capacity   the maximum number of entries, 0 to disable the cache.
+	 * @param timeToLive the time in milliseconds after which an entry expires.
+	 * @param clock      the source of the current time in milliseconds.
+	 */
+	public ValueCache(int capacity, long timeToLive, LongSupplier clock) {
+		this.timeToLive = timeToLive;
+		this.clock = clock;
+		entries = new LinkedHashMap<BigInteger, CachedValue>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<BigInteger, CachedValue> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Get a value from the cache.
+	 *
+	 * @param id the identifier of the value.
+	 *
+	 * @return the value, or null if there is no fresh copy of it in the cache.
+	 */
+	public synchronized byte[] get(BigInteger id) {
+		CachedValue cached = entries.get(id);
+		if (cached == null) {
+			return null;
+		}
+		if (cached.expiry <= clock.getAsLong()) {
+			entries.remove(id);
+			return null;
+		}
+		return cached.value;
+	}
+
+	public synchronized void put(BigInteger id, byte[] value) {
+		entries.put(id, new CachedValue(value, clock.getAsLong() + timeToLive));
+	}
+
+	public synchronized void remove(BigInteger id) {
+		entries.remove(id);
+	}
+
+	private static class CachedValue {
+		final byte[] value;
+		final long expiry;
+
+		CachedValue(byte[] value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+	}
+}